@@ -0,0 +1,109 @@
+package com.weimed.app.database;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Compiles {@code INSERT} statements once and reuses them across rows.
+ *
+ * <p>{@link SQLiteDatabase#insert(String, String, ContentValues)} builds and compiles a fresh
+ * statement for every row. When inserting many rows inside one transaction, this class instead
+ * keeps one compiled {@link SQLiteStatement} per table and distinct set of columns, and only
+ * rebinds the values for each row.
+ *
+ * <p>Example:
+ *
+ * <pre>
+ *     InsertStatementCache inserter = new InsertStatementCache(db);
+ *     try {
+ *         for (ContentValues values : rows) {
+ *             inserter.insert("entry", values);
+ *         }
+ *     } finally {
+ *         inserter.close();
+ *     }
+ * </pre>
+ *
+ * This class is <em>not</em> thread safe.
+ */
+public class InsertStatementCache {
+    private final SQLiteDatabase mDb;
+    private final Map<String, CompiledInsert> mStatements = new HashMap<String, CompiledInsert>();
+
+    /**
+     * @param db Database to insert into. Should be inside a transaction for the reuse to pay off.
+     */
+    public InsertStatementCache(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /**
+     * Insert a row.
+     *
+     * @param table Table name.
+     * @param values Column values. null is a valid value that will be translated to NULL.
+     * @return The row ID of the newly inserted row.
+     * @throws android.database.SQLException if the insert failed.
+     */
+    public long insert(String table, ContentValues values) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        final TreeSet<String> columns = new TreeSet<String>(values.keySet());
+        final String key = table + columns;
+        CompiledInsert compiled = mStatements.get(key);
+        if (compiled == null) {
+            compiled = new CompiledInsert(table, columns.toArray(new String[columns.size()]));
+            mStatements.put(key, compiled);
+        }
+
+        final SQLiteStatement statement = compiled.statement;
+        statement.clearBindings();
+        for (int i = 0; i < compiled.columns.length; i++) {
+            DatabaseUtils.bindObjectToProgram(statement, i + 1, values.get(compiled.columns[i]));
+        }
+        final long id = statement.executeInsert();
+        if (id == -1) {
+            throw new SQLException("Failed to insert row into " + table);
+        }
+        return id;
+    }
+
+    /**
+     * Release all compiled statements.
+     */
+    public void close() {
+        for (CompiledInsert compiled : mStatements.values()) {
+            compiled.statement.close();
+        }
+        mStatements.clear();
+    }
+
+    private class CompiledInsert {
+        final String[] columns;
+        final SQLiteStatement statement;
+
+        CompiledInsert(String table, String[] columns) {
+            this.columns = columns;
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            StringBuilder params = new StringBuilder();
+            for (int i = 0; i < columns.length; i++) {
+                if (i > 0) {
+                    sql.append(',');
+                    params.append(',');
+                }
+                sql.append(columns[i]);
+                params.append('?');
+            }
+            sql.append(") VALUES (").append(params).append(')');
+            this.statement = mDb.compileStatement(sql.toString());
+        }
+    }
+}
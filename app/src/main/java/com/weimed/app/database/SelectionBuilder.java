@@ -256,17 +256,23 @@ public class SelectionBuilder {
      *
      * Assumes that incoming columns are non-null.
      *
+     * <p>The projection is not modified: in-process callers pass their own array, which may be a
+     * constant reused for later queries.
+     *
      * <p>See also: map(), mapToTable()
      *
      * @param columns User supplied projection (column list).
+     * @return Mapped copy of the projection.
      */
-    private void mapColumns(String[] columns) {
-        for (int i = 0; i < columns.length; i++) {
-            final String target = mProjectionMap.get(columns[i]);
+    private String[] mapColumns(String[] columns) {
+        final String[] mapped = columns.clone();
+        for (int i = 0; i < mapped.length; i++) {
+            final String target = mProjectionMap.get(mapped[i]);
             if (target != null) {
-                columns[i] = target;
+                mapped[i] = target;
             }
         }
+        return mapped;
     }
 
     /**
@@ -322,7 +328,7 @@ public class SelectionBuilder {
     public Cursor query(SQLiteDatabase db, String[] columns, String groupBy,
                         String having, String orderBy, String limit) {
         assertTable();
-        if (columns != null) mapColumns(columns);
+        if (columns != null) columns = mapColumns(columns);
         Log.v(TAG, "query(columns=" + Arrays.toString(columns) + ") " + this);
         return db.query(mTable, columns, getSelection(), getSelectionArgs(), groupBy, having,
                 orderBy, limit);
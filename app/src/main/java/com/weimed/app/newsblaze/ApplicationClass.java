@@ -7,6 +7,7 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Environment;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.util.LruCache;
 import android.widget.SimpleCursorAdapter;
@@ -16,9 +17,8 @@ import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
 import com.weimed.app.utils.DiskLruImageCache;
 import com.weimed.app.utils.ImageCache;
+import com.weimed.app.utils.ImageFetcher;
 import com.weimed.app.utils.ImageWorker;
-import com.weimed.app.utils.RecyclingBitmapDrawable;
-import com.weimed.app.utils.Utils;
 
 import java.io.File;
 
@@ -33,6 +33,7 @@ public class ApplicationClass extends Application{
 
     // disk cache
     private static ImageCache mImageCache;
+    private static ImageFetcher mImageFetcher;
     private ImageCache.ImageCacheParams mImageCacheParams;
     private static DiskLruCache mDiskLruCache;
     private final Object mDiskCacheLock = new Object();
@@ -40,11 +41,6 @@ public class ApplicationClass extends Application{
     private static final int DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
     private static final String DISK_CACHE_SUBDIR = "thumbnails";
 
-    private static final int MESSAGE_CLEAR = 0;
-    private static final int MESSAGE_INIT_DISK_CACHE = 1;
-    private static final int MESSAGE_FLUSH = 2;
-    private static final int MESSAGE_CLOSE = 3;
-
     /**
      * Cursor adapter for entire application.
      */
@@ -111,120 +107,54 @@ public class ApplicationClass extends Application{
 //    }
 
     /**
-     * Adds an {@link ImageCache} to this {@link com.weimed.app.utils.ImageWorker} to handle disk and memory bitmap
-     * caching.
+     * Adds an {@link ImageCache} to the shared {@link ImageFetcher} to handle disk and memory
+     * bitmap caching. The fetcher downsamples images to the screen size.
      * @param cacheParams The cache parameters to use for the image cache.
      * {@link ImageCache.ImageCacheParams#ImageCacheParams(android.content.Context, String)}.
      */
     public void addImageCache(ImageCache.ImageCacheParams cacheParams) {
-        mImageCache = ImageCache.getInstance(cacheParams);
-        new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
-    }
-
-    protected class CacheAsyncTask extends com.weimed.app.utils.AsyncTask<Object, Void, Void> {
-
-        @Override
-        protected Void doInBackground(Object... params) {
-            switch ((Integer)params[0]) {
-                case MESSAGE_CLEAR:
-                    clearCacheInternal();
-                    break;
-                case MESSAGE_INIT_DISK_CACHE:
-                    initDiskCacheInternal();
-                    break;
-                case MESSAGE_FLUSH:
-                    flushCacheInternal();
-                    break;
-                case MESSAGE_CLOSE:
-                    closeCacheInternal();
-                    break;
-            }
-            return null;
-        }
-    }
-
-    protected void initDiskCacheInternal() {
-        if (mImageCache != null) {
-            mImageCache.initDiskCache();
-        }
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mImageFetcher = new ImageFetcher(this, metrics.widthPixels, metrics.heightPixels);
+        mImageFetcher.addImageCache(cacheParams);
+        mImageCache = mImageFetcher.getImageCache();
     }
 
-    protected void clearCacheInternal() {
-        if (mImageCache != null) {
-            mImageCache.clearCache();
-        }
+    /**
+     * @return The application-wide image fetcher, with memory, disk and HTTP caches.
+     */
+    public static ImageFetcher getImageFetcher() {
+        return mImageFetcher;
     }
 
-    protected static void flushCacheInternal() {
+    /**
+     * Shrinks the image caches and drops rendered articles as memory gets tight. The image memory
+     * cache grows back by itself once the pressure has passed.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
         if (mImageCache != null) {
-            mImageCache.flush();
+            mImageCache.trimMemory(level);
         }
+        ArticleCache.trimMemory(level);
     }
 
-    protected static void closeCacheInternal() {
-        if (mImageCache != null) {
-            mImageCache.close();
-            mImageCache = null;
-        }
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
     }
 
     public void clearCache() {
-        new CacheAsyncTask().execute(MESSAGE_CLEAR);
+        mImageFetcher.clearCache();
     }
 
     public void flushCache() {
-        new CacheAsyncTask().execute(MESSAGE_FLUSH);
+        mImageFetcher.flushCache();
     }
 
     public void closeCache() {
-        new CacheAsyncTask().execute(MESSAGE_CLOSE);
-    }
-
-    // set disk cache
-//    public static void addBitmapToDiskCache(String key, Drawable drawable) {
-//        if ( ! mDiskLruCache.containsKey(key)) {
-//            mDiskLruCache.put(key, mDiskLruCache.drawableToBitmap(drawable));
-//        }
-//    }
-    public static void addBitmapToCache(String key, BitmapDrawable drawable) {
-        if (mImageCache != null) {
-            mImageCache.addBitmapToCache(key, drawable);
-        }
-    }
-
-    // get disk cache
-//    public static Drawable getBitmapFromDiskCache(String key) {
-//        if (mDiskLruCache.containsKey(key)) {
-//            Bitmap bitmap = mDiskLruCache.getBitmap(key);
-//            return new BitmapDrawable(context.getResources(), bitmap);
-//        } else {
-//            return null;
-//        }
-//    }
-    public static BitmapDrawable getBitmapFromCache(Context context, String key) {
-        if (mImageCache != null ) {
-            BitmapDrawable drawable = mImageCache.getBitmapFromMemCache(key);
-            if (drawable != null) {
-                return drawable;
-            }
-            Bitmap bitmap = mImageCache.getBitmapFromDiskCache(key);
-            if (bitmap != null) {
-                if (Utils.hasHoneycomb()) {
-                    // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
-                    drawable = new BitmapDrawable(context.getResources(), bitmap);
-                } else {
-                    // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
-                    // which will recycle automagically
-                    drawable = new RecyclingBitmapDrawable(context.getResources(), bitmap);
-                }
-
-                if (mImageCache != null) {
-                    mImageCache.addBitmapToCache(key, drawable);
-                }
-            }
-            return drawable;
-        }
-        return null;
+        mImageFetcher.closeCache();
     }
 
 //    class InitDiskCacheTask extends AsyncTask<File, Void, Void> {
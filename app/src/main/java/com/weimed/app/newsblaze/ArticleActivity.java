@@ -8,6 +8,9 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.CursorLoader;
+import android.support.v4.content.Loader;
 import android.support.v4.view.ViewPager;
 import android.text.Spanned;
 import android.text.method.LinkMovementMethod;
@@ -16,6 +19,7 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.webkit.WebView;
 import android.widget.SimpleCursorAdapter;
 import android.widget.TextView;
@@ -32,6 +36,9 @@ import java.util.Locale;
 import android.text.Html;
 import android.text.Html.ImageGetter;
 import com.commonsware.cwac.anddown.AndDown;
+import com.weimed.app.provider.NewsContract;
+import com.weimed.app.utils.AsyncTask;
+import com.weimed.app.utils.ImageFetcher;
 import com.weimed.app.utils.URLImageParser;
 import com.weimed.app.widgets.TextViewWithImages;
 
@@ -119,13 +126,15 @@ public class ArticleActivity extends FragmentActivity /*implements ActionBar.Tab
 
         overridePendingTransition(android.R.anim.fade_in, android.R.anim.fade_out);
 
-        ApplicationClass.flushCacheInternal();
+        ImageFetcher imageFetcher = ApplicationClass.getImageFetcher();
+        if (imageFetcher != null) {
+            imageFetcher.flushCache();
+        }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
-        //ApplicationClass.closeCacheInternal();
     }
 
     /**
@@ -193,10 +202,10 @@ public class ArticleActivity extends FragmentActivity /*implements ActionBar.Tab
 //            } else {
 //                args.putString(DummySectionFragment.ARG_SECTION_FILENAME, "test.md");
 //            }
-            // Get the message from the intent
+            // Get the entry from the intent. The fragment loads its body.
             Intent intent = getIntent();
-            String content = intent.getStringExtra(MainActivity.EXTRA_NEWS_CONTENT);
-            args.putString(DummySectionFragment.ARG_SECTION_CONTENT, content);
+            long entryId = intent.getLongExtra(MainActivity.EXTRA_ENTRY_ID, -1);
+            args.putLong(DummySectionFragment.ARG_ENTRY_ID, entryId);
             fragment.setArguments(args);
             return fragment;
         }
@@ -241,15 +250,62 @@ public class ArticleActivity extends FragmentActivity /*implements ActionBar.Tab
     /**
      * A dummy fragment representing a section of the app, but that simply displays dummy text.
      * This would be replaced with your application's content.
+     *
+     * <p>The article body is loaded from {@link com.weimed.app.provider.NewsProvider} in the
+     * background, as HTML rendered at sync time, and turned into text by an
+     * {@link ArticleRenderTask}, which shows the first screenful before the rest is done. Rendered
+     * text is kept in {@link ArticleCache}, so a recently opened article (or one shown again after
+     * a rotation) is displayed straight away and only rendered again if its updatedat or content
+     * hash changed.</p>
      */
-    public static class DummySectionFragment extends Fragment {
+    public static class DummySectionFragment extends Fragment
+            implements LoaderManager.LoaderCallbacks<Cursor>, ArticleRenderTask.Listener {
         /**
          * The fragment argument representing the section number for this
          * fragment.
          */
         public static final String ARG_SECTION_NUMBER = "section_number";
         public static final String ARG_SECTION_FILENAME = "section_filename";
-        public static final String ARG_SECTION_CONTENT = "com.weimed.app.newblaze.CONTENT";
+        public static final String ARG_ENTRY_ID = "com.weimed.app.newblaze.ENTRY_ID";
+
+        private static final String[] BODY_PROJECTION = new String[] {
+                NewsContract.Entry.COLUMN_UPDATEDAT,
+                NewsContract.Entry.COLUMN_HTML,
+                NewsContract.Entry.COLUMN_CONTENT,
+                NewsContract.Entry.COLUMN_HASH
+        };
+
+        // Constants representing column positions from BODY_PROJECTION.
+        private static final int COLUMN_UPDATEDAT = 0;
+        private static final int COLUMN_HTML = 1;
+        private static final int COLUMN_CONTENT = 2;
+        private static final int COLUMN_HASH = 3;
+
+        private TextView mTextView;
+
+        /**
+         * Article currently shown in {@link #mTextView}.
+         */
+        private ArticleCache.Rendered mShown;
+
+        /**
+         * Rendering in progress, or null.
+         */
+        private ArticleRenderTask mRenderTask;
+
+        /**
+         * Loads the images nearest to what is on screen first.
+         */
+        private final ViewTreeObserver.OnScrollChangedListener mScrollListener =
+                new ViewTreeObserver.OnScrollChangedListener() {
+            @Override
+            public void onScrollChanged() {
+                URLImageParser images = getImages();
+                if (images != null) {
+                    images.updateFocus();
+                }
+            }
+        };
 
         public DummySectionFragment() {
         }
@@ -261,37 +317,168 @@ public class ArticleActivity extends FragmentActivity /*implements ActionBar.Tab
             View rootView = inflater.inflate(R.layout.fragment_main_dummy, container, false);
             //TextViewWithImages dummyTextView = (TextViewWithImages) rootView.findViewById(R.id.section_label);
             TextView dummyTextView = (TextView) rootView.findViewById(R.id.section_label);
+            mTextView = dummyTextView;
+            mShown = null;
 
-            String markdownString = "###markdown!!!";
 //            String fileName = getArguments().getString(ARG_SECTION_FILENAME);
 //            try {
 //                markdownString = LoadFile(fileName);
 //            }catch (IOException e) {
 //
 //            }
-            markdownString = getArguments().getString(ARG_SECTION_CONTENT);
-
-            //Bypass bypass = new Bypass();
-            //CharSequence string = bypass.markdownToSpannable(markdownString);
 
-            AndDown converter=new AndDown();
-            String cooked=converter.markdownToHtml(markdownString);
-            //Log.i(ARG_SECTION_NUMBER, cooked);
-            //CharSequence string=Html.fromHtml(cooked, getImageHTML(), null);
-            URLImageParser p = new URLImageParser(dummyTextView, getActivity());
-            Spanned string = Html.fromHtml(cooked, p, null);
-
-            //dummyTextView.loadData(cooked, "text/html", "UTF-8");
-            dummyTextView.setText(string);
             dummyTextView.setVerticalScrollBarEnabled(true);
             dummyTextView.setMovementMethod(ScrollingMovementMethod.getInstance());
+            dummyTextView.getViewTreeObserver().addOnScrollChangedListener(mScrollListener);
 
             //dummyTextView.setMovementMethod(LinkMovementMethod.getInstance());
             //dummyTextView.setText(Integer.toString(getArguments().getInt(ARG_SECTION_NUMBER)));
 
+            // Show the last rendering right away; the loader replaces it if the entry changed.
+            ArticleCache.Rendered cached = ArticleCache.get(getArguments().getLong(ARG_ENTRY_ID));
+            if (cached != null) {
+                show(cached);
+            } else if (mRenderTask != null) {
+                // Still rendering from before the view was recreated.
+                mRenderTask.getImages().setContainer(dummyTextView);
+                dummyTextView.setText(mRenderTask.getTextSoFar());
+            }
+            getLoaderManager().initLoader(0, null, this);
+
             return rootView;
         }
 
+        @Override
+        public void onDestroyView() {
+            super.onDestroyView();
+            ViewTreeObserver observer = mTextView.getViewTreeObserver();
+            if (observer.isAlive()) {
+                observer.removeOnScrollChangedListener(mScrollListener);
+            }
+            // Stop loading images for the view; they resume when the article is shown again.
+            if (mShown != null) {
+                mShown.images.cancelLoads();
+            }
+            if (mRenderTask != null) {
+                mRenderTask.getImages().cancelLoads();
+            }
+            mTextView = null;
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            if (mRenderTask != null) {
+                mRenderTask.cancel(false);
+                mRenderTask.getImages().cancelLoads();
+                mRenderTask = null;
+            }
+        }
+
+        /**
+         * @return the images of the article being rendered or shown, or null
+         */
+        private URLImageParser getImages() {
+            if (mRenderTask != null) {
+                return mRenderTask.getImages();
+            }
+            return mShown != null ? mShown.images : null;
+        }
+
+        /**
+         * @return the content width of the text view once it is laid out, the screen width less
+         * its padding before that
+         */
+        private int getTextWidth() {
+            final int width = mTextView.getWidth() > 0 ? mTextView.getWidth()
+                    : getResources().getDisplayMetrics().widthPixels;
+            return width - mTextView.getPaddingLeft() - mTextView.getPaddingRight();
+        }
+
+        @Override
+        public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+            return new CursorLoader(getActivity(),
+                    NewsContract.Entry.buildBodyUri(getArguments().getLong(ARG_ENTRY_ID)),
+                    BODY_PROJECTION, null, null, null);
+        }
+
+        @Override
+        public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+            if (mTextView == null || !cursor.moveToFirst()) {
+                return;
+            }
+            final long entryId = getArguments().getLong(ARG_ENTRY_ID);
+            final long updatedAt = cursor.isNull(COLUMN_UPDATEDAT) ? 0 : cursor.getLong(COLUMN_UPDATEDAT);
+            final String hash = cursor.getString(COLUMN_HASH);
+            if (mShown != null && mShown.isVersion(updatedAt, hash)) {
+                return;
+            }
+            ArticleCache.Rendered rendered = ArticleCache.get(entryId, updatedAt, hash);
+            if (rendered != null) {
+                show(rendered);
+                return;
+            }
+            if (mRenderTask != null) {
+                if (mRenderTask.isVersion(updatedAt, hash)) {
+                    return;
+                }
+                mRenderTask.cancel(false);
+                mRenderTask.getImages().cancelLoads();
+            }
+            // Without HTML from the sync (e.g. stored before HTML was), the task converts the
+            // markdown itself.
+            //Bypass bypass = new Bypass();
+            //CharSequence string = bypass.markdownToSpannable(markdownString);
+            String html = cursor.getString(COLUMN_HTML);
+            String markdownString = html == null ? cursor.getString(COLUMN_CONTENT) : null;
+            //CharSequence string=Html.fromHtml(cooked, getImageHTML(), null);
+            URLImageParser p = new URLImageParser(mTextView, getActivity().getApplicationContext(),
+                    getTextWidth());
+            mRenderTask = new ArticleRenderTask(html, markdownString, updatedAt, hash, p, this);
+            mRenderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        @Override
+        public void onRenderProgress(ArticleRenderTask task, Spanned textSoFar) {
+            if (task == mRenderTask && mTextView != null) {
+                mTextView.setText(textSoFar);
+            }
+        }
+
+        @Override
+        public void onRenderComplete(ArticleRenderTask task, Spanned text) {
+            if (task != mRenderTask) {
+                return;
+            }
+            mRenderTask = null;
+            ArticleCache.Rendered rendered =
+                    new ArticleCache.Rendered(task.getUpdatedAt(), task.getHash(), text,
+                            task.getImages());
+            ArticleCache.put(getArguments().getLong(ARG_ENTRY_ID), rendered);
+            if (mTextView != null) {
+                show(rendered);
+            }
+        }
+
+        @Override
+        public void onLoaderReset(Loader<Cursor> loader) {
+        }
+
+        /**
+         * Show a rendered article in the text view.
+         * @param rendered
+         */
+        private void show(ArticleCache.Rendered rendered) {
+            if (mShown != null && mShown.images != rendered.images) {
+                mShown.images.cancelLoads();
+            }
+            // Images still loading for a cached article must refresh this view now.
+            rendered.images.setContainer(mTextView);
+            //dummyTextView.loadData(cooked, "text/html", "UTF-8");
+            mTextView.setText(rendered.text);
+            mShown = rendered;
+        }
+
         //load file from apps assets folder
         public String LoadFile(String fileName) throws IOException
         {
@@ -0,0 +1,128 @@
+package com.weimed.app.newsblaze;
+
+import android.content.ComponentCallbacks2;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.text.Spanned;
+import android.text.TextUtils;
+
+import com.weimed.app.utils.URLImageParser;
+
+/**
+ * Articles recently rendered by {@link ArticleActivity}, keyed by entry _ID.
+ *
+ * <p>Each entry remembers the updatedat and content hash of the row it was rendered from. Callers
+ * look it up with the current ones, so an article changed by a sync is rendered again instead of
+ * being shown stale, even if the feed didn't bump its updatedat.
+ *
+ * <p>The cache is sized by text only. Entries that aren't shown hold no images: their image getters
+ * drop them in {@link URLImageParser#cancelLoads()} and load them again when shown.
+ *
+ * This class is thread safe.
+ */
+class ArticleCache {
+    /**
+     * Cache size, measured in characters of rendered text.
+     */
+    private static final int CACHE_SIZE = 256 * 1024;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final LruCache<Long, Rendered> sCache = new LruCache<Long, Rendered>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long id, Rendered rendered) {
+            return Math.max(1, rendered.text.length());
+        }
+
+        /**
+         * Stop the images of a dropped rendering loading, and let go of those loaded, unless it
+         * is still on screen.
+         */
+        @Override
+        protected void entryRemoved(boolean evicted, Long id, final Rendered oldValue,
+                Rendered newValue) {
+            if (newValue != null && newValue.images == oldValue.images) {
+                return;
+            }
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                oldValue.images.cancelLoadsIfDetached();
+            } else {
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        oldValue.images.cancelLoadsIfDetached();
+                    }
+                });
+            }
+        }
+    };
+
+    private ArticleCache() {
+    }
+
+    /**
+     * @param id _ID of the entry
+     * @return the last rendering of the entry, whatever its updatedat, or null
+     */
+    static Rendered get(long id) {
+        return sCache.get(id);
+    }
+
+    /**
+     * @param id _ID of the entry
+     * @param updatedAt current updatedat of the entry
+     * @param hash current content hash of the entry, or null
+     * @return the rendering of that version of the entry, or null
+     */
+    static Rendered get(long id, long updatedAt, String hash) {
+        Rendered rendered = sCache.get(id);
+        return rendered != null && rendered.isVersion(updatedAt, hash) ? rendered : null;
+    }
+
+    static void put(long id, Rendered rendered) {
+        sCache.put(id, rendered);
+    }
+
+    /**
+     * Release memory according to how hard the system is pressed for it. Renderings are cheap to
+     * redo compared to what they hold on to: their text, and through their image getters, their
+     * images. The cache fills up to its full size again as articles are opened.
+     * @param level trim level, as passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+     */
+    static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            sCache.evictAll();
+        } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            sCache.trimToSize(CACHE_SIZE / 2);
+        }
+    }
+
+    /**
+     * A rendered article.
+     */
+    static class Rendered {
+        /** updatedat of the row this was rendered from. */
+        final long updatedAt;
+        /** Content hash of the row this was rendered from, or null. */
+        final String hash;
+        final Spanned text;
+        /** Loads the images in {@link #text}; point it at the view the text is shown in. */
+        final URLImageParser images;
+
+        Rendered(long updatedAt, String hash, Spanned text, URLImageParser images) {
+            this.updatedAt = updatedAt;
+            this.hash = hash;
+            this.text = text;
+            this.images = images;
+        }
+
+        /**
+         * @return true if this was rendered from the row version with this updatedat and hash
+         */
+        boolean isVersion(long updatedAt, String hash) {
+            return this.updatedAt == updatedAt && TextUtils.equals(this.hash, hash);
+        }
+    }
+}
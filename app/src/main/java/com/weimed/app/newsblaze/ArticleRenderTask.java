@@ -0,0 +1,196 @@
+package com.weimed.app.newsblaze;
+
+import android.text.Html;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextUtils;
+
+import com.commonsware.cwac.anddown.AndDown;
+import com.weimed.app.utils.AsyncTask;
+import com.weimed.app.utils.URLImageParser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Renders an article into a {@link Spanned} on a background thread, delivering it in pieces.
+ *
+ * <p>The HTML is cut at top-level block boundaries. The first piece is kept to about a screenful,
+ * so it is converted and shown quickly however long the article is; the remaining pieces follow
+ * and are appended as they are converted. If only markdown is available, it is converted to HTML
+ * first, also in the background.
+ *
+ * <p>All {@link Listener} callbacks run on the UI thread.
+ */
+class ArticleRenderTask extends AsyncTask<Void, Spanned, Spanned> {
+    /**
+     * Target size of the first piece, in characters of HTML.
+     */
+    static final int FIRST_CHUNK_CHARS = 2 * 1024;
+
+    /**
+     * Target size of the following pieces, in characters of HTML.
+     */
+    static final int CHUNK_CHARS = 16 * 1024;
+
+    /**
+     * Block-level tags. Pieces are only cut after a closing tag at nesting depth zero.
+     */
+    private static final Pattern BLOCK_TAG = Pattern.compile(
+            "<(/?)(p|h[1-6]|ul|ol|dl|blockquote|pre|table|div)\\b[^>]*>",
+            Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Receives the rendered text.
+     */
+    interface Listener {
+        /**
+         * More text is available.
+         * @param task the task
+         * @param textSoFar everything rendered so far; keeps growing until the task completes
+         */
+        void onRenderProgress(ArticleRenderTask task, Spanned textSoFar);
+
+        /**
+         * Rendering has finished.
+         * @param task the task, for {@link #getUpdatedAt()}, {@link #getHash()} and
+         *     {@link #getImages()}
+         * @param text the complete text
+         */
+        void onRenderComplete(ArticleRenderTask task, Spanned text);
+    }
+
+    private final String mHtml;
+    private final String mMarkdown;
+    private final long mUpdatedAt;
+    private final String mHash;
+    private final URLImageParser mImages;
+    private final SpannableStringBuilder mText = new SpannableStringBuilder();
+    private final Listener mListener;
+
+    /**
+     * @param html HTML to render, or null to convert markdown instead
+     * @param markdown markdown to convert when there is no HTML
+     * @param updatedAt updatedat of the row being rendered
+     * @param hash content hash of the row being rendered, or null
+     * @param images image getter for the article
+     * @param listener receives the text on the UI thread
+     */
+    ArticleRenderTask(String html, String markdown, long updatedAt, String hash,
+            URLImageParser images, Listener listener) {
+        mHtml = html;
+        mMarkdown = markdown;
+        mUpdatedAt = updatedAt;
+        mHash = hash;
+        mImages = images;
+        mListener = listener;
+    }
+
+    long getUpdatedAt() {
+        return mUpdatedAt;
+    }
+
+    String getHash() {
+        return mHash;
+    }
+
+    /**
+     * @return true if this renders the row version with this updatedat and hash
+     */
+    boolean isVersion(long updatedAt, String hash) {
+        return mUpdatedAt == updatedAt && TextUtils.equals(mHash, hash);
+    }
+
+    URLImageParser getImages() {
+        return mImages;
+    }
+
+    /**
+     * @return the text delivered so far. Only access on the UI thread.
+     */
+    Spanned getTextSoFar() {
+        return mText;
+    }
+
+    @Override
+    protected Spanned doInBackground(Void... params) {
+        String html = mHtml;
+        if (html == null) {
+            html = mMarkdown != null ? new AndDown().markdownToHtml(mMarkdown) : "";
+        }
+        for (String chunk : splitBlocks(html, FIRST_CHUNK_CHARS, CHUNK_CHARS)) {
+            if (isCancelled()) {
+                return null;
+            }
+            // Lets image placeholders take their final size up front.
+            mImages.declareSizes(chunk);
+            publishProgress(Html.fromHtml(chunk, mImages, null));
+        }
+        return null;
+    }
+
+    @Override
+    protected void onProgressUpdate(Spanned... values) {
+        for (Spanned chunk : values) {
+            mText.append(chunk);
+        }
+        if (mListener != null) {
+            mListener.onRenderProgress(this, mText);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Spanned result) {
+        // Progress updates are delivered in order before the result.
+        if (mListener != null) {
+            mListener.onRenderComplete(this, mText);
+        }
+    }
+
+    /**
+     * Cut HTML into pieces at top-level block boundaries.
+     * @param html HTML to cut
+     * @param firstChunkChars minimum size of the first piece, where a boundary allows
+     * @param chunkChars minimum size of the following pieces, where a boundary allows
+     * @return the pieces, in order; together they are the whole input
+     */
+    static List<String> splitBlocks(String html, int firstChunkChars, int chunkChars) {
+        final List<String> chunks = new ArrayList<String>();
+        final Matcher m = BLOCK_TAG.matcher(html);
+        int depth = 0;
+        int start = 0;
+        int target = firstChunkChars;
+        while (m.find()) {
+            final boolean closing = m.group(1).length() > 0;
+            final boolean container = !isLeafBlock(m.group(2));
+            if (!closing) {
+                if (container) {
+                    depth++;
+                }
+                continue;
+            }
+            if (container && depth > 0) {
+                depth--;
+            }
+            if (depth == 0 && m.end() - start >= target) {
+                chunks.add(html.substring(start, m.end()));
+                start = m.end();
+                target = chunkChars;
+            }
+        }
+        if (start < html.length() || chunks.isEmpty()) {
+            chunks.add(html.substring(start));
+        }
+        return chunks;
+    }
+
+    /**
+     * @return true for blocks which can't contain other blocks
+     */
+    private static boolean isLeafBlock(String tag) {
+        final char c = Character.toLowerCase(tag.charAt(0));
+        return c == 'p' && tag.length() == 1 || c == 'h';
+    }
+}
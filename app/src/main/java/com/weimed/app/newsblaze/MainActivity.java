@@ -13,15 +13,19 @@ import android.content.Loader;
 import android.content.OperationApplicationException;
 import android.content.SyncStatusObserver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.text.format.DateUtils;
+import android.util.SparseArray;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
 import android.widget.ListView;
@@ -41,15 +45,18 @@ import java.util.List;
 public class MainActivity extends ListActivity
         implements LoaderManager.LoaderCallbacks<Cursor> {
 
-    public final static String EXTRA_NEWS_CONTENT = "com.weimed.app.newblaze.CONTENT";
     /**
-     * Projection for querying the content provider.
+     * Intent extra carrying the _ID of the entry to show in {@link ArticleActivity}.
+     */
+    public final static String EXTRA_ENTRY_ID = "com.weimed.app.newblaze.ENTRY_ID";
+    /**
+     * Projection for querying the content provider. Only the columns the list shows; article
+     * bodies are loaded when an article is opened.
      */
     private static final String[] PROJECTION = new String[] {
             NewsContract.Entry._ID,
             NewsContract.Entry.COLUMN_ENTRY_ID,
             NewsContract.Entry.COLUMN_TITLE,
-            NewsContract.Entry.COLUMN_CONTENT,
             NewsContract.Entry.COLUMN_PUBLISHER,
             NewsContract.Entry.COLUMN_PICURL,
             NewsContract.Entry.COLUMN_ORIGINALURL,
@@ -62,13 +69,12 @@ public class MainActivity extends ListActivity
     public static final int COLUMN_ID = 0;
     public static final int COLUMN_ENTRY_ID = 1;
     public static final int COLUMN_TITLE = 2;
-    public static final int COLUMN_CONTENT = 3;
-    public static final int COLUMN_PUBLISHER = 4;
-    public static final int COLUMN_PICURL = 5;
-    public static final int COLUMN_ORIGINALURL = 6;
-    public static final int COLUMN_CREATEDAT = 7;
-    public static final int COLUMN_UPDATEDAT = 8;
-    public static final int COLUMN_PUBLISHEDAT = 9;
+    public static final int COLUMN_PUBLISHER = 3;
+    public static final int COLUMN_PICURL = 4;
+    public static final int COLUMN_ORIGINALURL = 5;
+    public static final int COLUMN_CREATEDAT = 6;
+    public static final int COLUMN_UPDATEDAT = 7;
+    public static final int COLUMN_PUBLISHEDAT = 8;
 
     /**
      * List of Cursor columns to read from when preparing an adapter to populate the ListView.
@@ -90,6 +96,46 @@ public class MainActivity extends ListActivity
             R.id.imageView
     };
 
+    /**
+     * Number of entries fetched per page.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * The next page is requested once the last visible row is this close to the end of the list.
+     */
+    private static final int PREFETCH_DISTANCE = 10;
+
+    // Loader arguments.
+    private static final String ARG_LIMIT = "limit";
+    private static final String ARG_BEFORE = "before";
+
+    // Saved instance state.
+    private static final String STATE_PAGE_KEYS = "page_keys";
+    private static final String STATE_FIRST_PAGE_LIMIT = "first_page_limit";
+
+    /**
+     * Page key each page starts after, indexed by page; the first page has none. The page index
+     * doubles as the ID of the loader for that page.
+     */
+    private ArrayList<String> mPageKeys = new ArrayList<String>();
+
+    /**
+     * Cursors delivered for each page, by page index.
+     */
+    private final SparseArray<Cursor> mPages = new SparseArray<Cursor>();
+
+    /**
+     * Row limit of the first page. Grows when pages are collapsed after a data change.
+     */
+    private int mFirstPageLimit = PAGE_SIZE;
+
+    /**
+     * True when the last page came back full, so another page may follow. Cleared while the next
+     * page is loading.
+     */
+    private boolean mHasMore = false;
+
     /**
      * Cursor adapter for controlling ListView results.
      */
@@ -135,8 +181,38 @@ public class MainActivity extends ListActivity
                 TO_FIELDS,           // Layout fields to use
                 0                    // No flags
         );
+        adapter.setViewBinder(new SimpleCursorAdapter.ViewBinder() {
+            @Override
+            public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
+                if (columnIndex != COLUMN_PUBLISHEDAT) {
+                    return false;
+                }
+                // Dates are stored as epoch milliseconds; show them relative to now.
+                if (cursor.isNull(columnIndex)) {
+                    ((TextView) view).setText(null);
+                } else {
+                    ((TextView) view).setText(DateUtils.getRelativeTimeSpanString(
+                            cursor.getLong(columnIndex)));
+                }
+                return true;
+            }
+        });
         //adapter = new NewsAdapter();
         setListAdapter(adapter);
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (totalItemCount > 0
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
 
 //        listview.setOnItemClickListener(new AdapterView.OnItemClickListener() {
 //            @Override
@@ -147,19 +223,35 @@ public class MainActivity extends ListActivity
 //        });
 
         //listview.setEmptyText(getText(R.string.loading));
-        getLoaderManager().initLoader(0, null, this);
+        if (savedInstanceState != null) {
+            mPageKeys = savedInstanceState.getStringArrayList(STATE_PAGE_KEYS);
+            mFirstPageLimit = savedInstanceState.getInt(STATE_FIRST_PAGE_LIMIT, PAGE_SIZE);
+        }
+        if (mPageKeys == null || mPageKeys.isEmpty()) {
+            mPageKeys = new ArrayList<String>();
+            mPageKeys.add(null);
+        }
+        // Reconnects to retained loaders after a configuration change.
+        for (int page = 0; page < mPageKeys.size(); page++) {
+            getLoaderManager().initLoader(page, pageArgs(page), this);
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putStringArrayList(STATE_PAGE_KEYS, mPageKeys);
+        outState.putInt(STATE_FIRST_PAGE_LIMIT, mFirstPageLimit);
     }
 
     @Override
     protected void onListItemClick(ListView l, View v, int position, long id) {
         super.onListItemClick(l, v, position, id);
-        // Get the item that was clicked
-        Cursor c = (Cursor) this.getListAdapter().getItem(position);
-        String content = c.getString(c.getColumnIndex(NewsContract.Entry.COLUMN_CONTENT));
         //Toast.makeText(this, "You selected: " + title, Toast.LENGTH_SHORT).show();
 
+        // Only pass the ID; ArticleActivity loads the body itself.
         Intent intent = new Intent(this, ArticleActivity.class);
-        intent.putExtra(EXTRA_NEWS_CONTENT, content);
+        intent.putExtra(EXTRA_ENTRY_ID, id);
         startActivity(intent);
     }
 
@@ -192,17 +284,19 @@ public class MainActivity extends ListActivity
      * triggered when data in the content provider changes. When the sync adapter updates the
      * content provider, the ContentObserver responds by resetting the loader and then reloading
      * it.
+     *
+     * <p>There is one loader per page of the list. Each page is a keyset query starting after the
+     * last row of the previous page, so the cost of a page does not depend on its depth.
      */
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // We only have one loader, so we can ignore the value of i.
-        // (It'll be '0', as set in onCreate().)
         return new CursorLoader(MainActivity.this,  // Context
-                NewsContract.Entry.CONTENT_URI, // URI
+                NewsContract.Entry.buildPageUri(bundle.getInt(ARG_LIMIT),
+                        bundle.getString(ARG_BEFORE)), // URI
                 PROJECTION,                     // Projection
                 null,                           // Selection
                 null,                           // Selection args
-                NewsContract.Entry.COLUMN_PUBLISHEDAT +" desc"); // Sort
+                null);                          // Sort, fixed for pages
     }
 
     /**
@@ -211,7 +305,24 @@ public class MainActivity extends ListActivity
      */
     @Override
     public void onLoadFinished(Loader<Cursor> cursorLoader, Cursor cursor) {
-        adapter.swapCursor(cursor);
+        final int page = cursorLoader.getId();
+        final Cursor previous = mPages.get(page);
+        mPages.put(page, cursor);
+        if (previous != null && previous != cursor && mPageKeys.size() > 1) {
+            // Data changed while several pages are shown. Later page keys may no longer line up
+            // with this page, so reload everything shown so far as one page. Loaders can't be
+            // restarted from inside this callback. The loader closes the previous cursor once
+            // this returns, so the list must stop using it now.
+            updateAdapterCursor();
+            getListView().post(mCollapsePages);
+            return;
+        }
+        if (page == mPageKeys.size() - 1) {
+            // A short page after a dated key may still be followed by the undated rows.
+            mHasMore = cursor.getCount() >= pageLimit(page)
+                    || NewsContract.Entry.isDatedPageKey(mPageKeys.get(page));
+        }
+        updateAdapterCursor();
     }
 
     /**
@@ -222,7 +333,90 @@ public class MainActivity extends ListActivity
      */
     @Override
     public void onLoaderReset(Loader<Cursor> cursorLoader) {
-        adapter.swapCursor(null);
+        mPages.remove(cursorLoader.getId());
+        updateAdapterCursor();
+    }
+
+    /**
+     * Start loading the page after the last one, if there may be one and it isn't loading yet.
+     */
+    private void loadNextPage() {
+        if (!mHasMore) {
+            return;
+        }
+        final int last = mPageKeys.size() - 1;
+        final Cursor c = mPages.get(last);
+        if (c == null) {
+            return;
+        }
+        final String key;
+        if (c.getCount() < pageLimit(last)) {
+            // The dated rows ran out; the undated ones are paged separately.
+            key = NewsContract.Entry.PAGE_KEY_UNDATED;
+        } else if (c.moveToLast()) {
+            key = NewsContract.Entry.buildPageKey(
+                    c.isNull(COLUMN_PUBLISHEDAT) ? null : c.getLong(COLUMN_PUBLISHEDAT),
+                    c.getLong(COLUMN_ID));
+        } else {
+            return;
+        }
+        mHasMore = false;
+        mPageKeys.add(key);
+        getLoaderManager().initLoader(last + 1, pageArgs(last + 1), this);
+    }
+
+    /**
+     * Replace all pages with a single first page covering the rows currently shown.
+     */
+    private final Runnable mCollapsePages = new Runnable() {
+        @Override
+        public void run() {
+            if (isFinishing() || mPageKeys.size() <= 1) {
+                return;
+            }
+            final LoaderManager loaderManager = getLoaderManager();
+            final int rows = adapter.getCount();
+            for (int page = mPageKeys.size() - 1; page > 0; page--) {
+                loaderManager.destroyLoader(page);
+            }
+            mPageKeys.subList(1, mPageKeys.size()).clear();
+            mFirstPageLimit = Math.max(rows, PAGE_SIZE);
+            mHasMore = false;
+            loaderManager.restartLoader(0, pageArgs(0), MainActivity.this);
+        }
+    };
+
+    /**
+     * Show the contiguous run of loaded pages, starting from the first.
+     */
+    private void updateAdapterCursor() {
+        final ArrayList<Cursor> cursors = new ArrayList<Cursor>(mPageKeys.size());
+        for (int page = 0; page < mPageKeys.size(); page++) {
+            final Cursor c = mPages.get(page);
+            if (c == null) {
+                break;
+            }
+            cursors.add(c);
+        }
+        if (cursors.isEmpty()) {
+            adapter.swapCursor(null);
+        } else if (cursors.size() == 1) {
+            adapter.swapCursor(cursors.get(0));
+        } else {
+            // Loaders own the page cursors; the adapter must not close them.
+            adapter.swapCursor(new MergeCursor(cursors.toArray(new Cursor[cursors.size()])));
+        }
+    }
+
+    private int pageLimit(int page) {
+        return page == 0 ? mFirstPageLimit : PAGE_SIZE;
+    }
+
+    private Bundle pageArgs(int page) {
+        Bundle args = new Bundle();
+        args.putInt(ARG_LIMIT, pageLimit(page));
+        args.putString(ARG_BEFORE, mPageKeys.get(page));
+        return args;
     }
 
     public class NewsItem {
@@ -0,0 +1,122 @@
+package com.weimed.app.provider;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.HashSet;
+
+/**
+ * Coalesces change notifications for {@link NewsProvider}.
+ *
+ * <p>Writes mark their URI dirty instead of notifying straight away. Outside of a batch, dirty
+ * URIs are delivered after a short debounce window, so a burst of single-row writes produces one
+ * notification per URI. Between {@link #beginBatch()} and the matching {@link #endBatch()}
+ * nothing is delivered; the dirty set is flushed once when the outermost batch ends. Batches nest,
+ * so a sync can span several provider transactions and still notify only once.
+ *
+ * <p>If a directory URI such as {@link NewsContract.Entry#CONTENT_URI} is dirty, notifications for
+ * its individual items are dropped: observers of an item are already notified when its parent
+ * changes.
+ *
+ * This class is thread safe.
+ */
+class ChangeNotifier {
+    /**
+     * Debounce window for writes made outside of a batch, in milliseconds.
+     */
+    static final long DEBOUNCE_MILLIS = 100;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final HashSet<Uri> mDirty = new HashSet<Uri>();
+    private int mBatchDepth = 0;
+    private boolean mFlushScheduled = false;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ChangeNotifier.this) {
+                mFlushScheduled = false;
+                if (mBatchDepth > 0) {
+                    // A batch started meanwhile; it will flush when it ends.
+                    return;
+                }
+            }
+            flush();
+        }
+    };
+
+    ChangeNotifier(ContentResolver contentResolver) {
+        mContentResolver = contentResolver;
+    }
+
+    /**
+     * Record that data at the given URI changed.
+     */
+    synchronized void markDirty(Uri uri) {
+        mDirty.add(uri);
+        if (mBatchDepth == 0 && !mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, DEBOUNCE_MILLIS);
+        }
+    }
+
+    /**
+     * Hold back notifications until the matching {@link #endBatch()}.
+     */
+    synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    /**
+     * End a batch. When the outermost batch ends, every dirty URI is notified once.
+     */
+    void endBatch() {
+        synchronized (this) {
+            if (mBatchDepth == 0) {
+                throw new IllegalStateException("endBatch() without beginBatch()");
+            }
+            if (--mBatchDepth > 0) {
+                return;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Deliver all pending notifications now.
+     */
+    void flush() {
+        final HashSet<String> dirty = new HashSet<String>();
+        synchronized (this) {
+            if (mDirty.isEmpty()) {
+                return;
+            }
+            for (Uri uri : mDirty) {
+                dirty.add(uri.toString());
+            }
+            mDirty.clear();
+        }
+        for (String uri : dirty) {
+            if (!hasDirtyAncestor(uri, dirty)) {
+                mContentResolver.notifyChange(Uri.parse(uri), null, false);
+            }
+        }
+    }
+
+    private static boolean hasDirtyAncestor(String uri, HashSet<String> dirty) {
+        // Walk up the path one segment at a time, stopping at the authority.
+        final int authorityEnd = uri.indexOf('/', ContentResolver.SCHEME_CONTENT.length() + 3);
+        int slash = uri.lastIndexOf('/');
+        while (slash > authorityEnd && authorityEnd > 0) {
+            uri = uri.substring(0, slash);
+            if (dirty.contains(uri)) {
+                return true;
+            }
+            slash = uri.lastIndexOf('/');
+        }
+        return false;
+    }
+}
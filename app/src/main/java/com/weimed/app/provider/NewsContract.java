@@ -23,11 +23,28 @@ public class NewsContract {
      */
     public static final Uri BASE_CONTENT_URI = Uri.parse("content://" + CONTENT_AUTHORITY);
 
+    /**
+     * Provider method, for use with {@link android.content.ContentResolver#call}, which holds back
+     * change notifications until the matching {@link #METHOD_END_BATCH}.
+     */
+    public static final String METHOD_BEGIN_BATCH = "begin_batch";
+
+    /**
+     * Provider method ending a batch started with {@link #METHOD_BEGIN_BATCH}. Observers are
+     * notified once when the outermost batch ends.
+     */
+    public static final String METHOD_END_BATCH = "end_batch";
+
     /**
      * Path component for "entry"-type resources..
      */
     private static final String PATH_ENTRIES = "entries";
 
+    /**
+     * Path component for the body of an entry, below its item URI.
+     */
+    private static final String PATH_BODY = "body";
+
     /**
      * Columns supported by "entries" records.
      */
@@ -44,6 +61,12 @@ public class NewsContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.newsblaze.entry";
 
+        /**
+         * MIME type for the body of an entry.
+         */
+        public static final String CONTENT_BODY_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd.newsblaze.entry.body";
+
         /**
          * Fully qualified URI for "entry" resources.
          */
@@ -55,6 +78,30 @@ public class NewsContract {
          */
         public static final String TABLE_NAME = "entry";
 
+        /**
+         * Table name where article bodies are stored, keyed by the _ID of their entry. Bodies are
+         * kept apart so that list queries never page them in.
+         */
+        public static final String BODY_TABLE_NAME = "entry_body";
+
+        /**
+         * Build the URI of a single entry.
+         * @param id _ID of the entry
+         */
+        public static Uri buildEntryUri(long id) {
+            return CONTENT_URI.buildUpon().appendPath(Long.toString(id)).build();
+        }
+
+        /**
+         * Build the URI of the body of an entry. Queries on it return {@link #_ID},
+         * {@link #COLUMN_CONTENT} and {@link #COLUMN_HTML} by default, and may also name entry
+         * columns.
+         * @param id _ID of the entry
+         */
+        public static Uri buildBodyUri(long id) {
+            return buildEntryUri(id).buildUpon().appendPath(PATH_BODY).build();
+        }
+
         /**
          * Atom ID. (NOTE: Not to be confused with the database primary key, which is _ID.
          */
@@ -66,10 +113,17 @@ public class NewsContract {
         public static final String COLUMN_TITLE = "title";
 
         /**
-         * content
+         * content, stored in {@link #BODY_TABLE_NAME}. Directory queries only return it when it
+         * is named in the projection; prefer {@link #buildBodyUri(long)} for reading one body.
          */
         public static final String COLUMN_CONTENT = "content";
 
+        /**
+         * content rendered to HTML by the sync, stored in {@link #BODY_TABLE_NAME}. May be null,
+         * in which case readers render {@link #COLUMN_CONTENT} themselves.
+         */
+        public static final String COLUMN_HTML = "html";
+
         /**
          * publisher
          */
@@ -86,18 +140,81 @@ public class NewsContract {
         public static final String COLUMN_ORIGINALURL = "originalurl";
 
         /**
-         * created at
+         * created at, in epoch milliseconds
          */
         public static final String COLUMN_CREATEDAT = "createdat";
 
         /**
-         * updated at
+         * updated at, in epoch milliseconds
          */
         public static final String COLUMN_UPDATEDAT = "updatedat";
 
         /**
-         * published at
+         * published at, in epoch milliseconds
          */
         public static final String COLUMN_PUBLISHEDAT = "publishedat";
+
+        /**
+         * Hash over the synced columns, used by the sync merge to detect unchanged rows without
+         * reading them.
+         */
+        public static final String COLUMN_HASH = "hash";
+
+        /**
+         * Query parameter limiting a directory query to this many rows. When present, rows are
+         * returned in {@link #PAGE_SORT_ORDER} and any sort order passed to the query is ignored.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        /**
+         * Query parameter restricting a directory query to rows after a page key, as built by
+         * {@link #buildPageKey(Long, long)}, in {@link #PAGE_SORT_ORDER}. Used for keyset
+         * pagination: pass the key of the last row of the previous page.
+         */
+        public static final String QUERY_PARAMETER_BEFORE = "before";
+
+        /**
+         * Order of paged queries: newest first, ties broken by _ID so that every row has a unique
+         * position. Entries without a publish date come last.
+         */
+        public static final String PAGE_SORT_ORDER =
+                TABLE_NAME + "." + COLUMN_PUBLISHEDAT + " DESC," + TABLE_NAME + "." + _ID + " DESC";
+
+        /**
+         * Build the URI of one page of entries.
+         * @param limit maximum number of rows
+         * @param before page key of the last row of the previous page, or null for the first page
+         */
+        public static Uri buildPageUri(int limit, String before) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit));
+            if (before != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_BEFORE, before);
+            }
+            return builder.build();
+        }
+
+        /**
+         * Build the page key of a row, for {@link #QUERY_PARAMETER_BEFORE}.
+         * @param publishedAt publish date of the row, or null if it has none
+         * @param id _ID of the row
+         */
+        public static String buildPageKey(Long publishedAt, long id) {
+            return (publishedAt != null ? publishedAt.toString() : "") + "," + id;
+        }
+
+        /**
+         * Page key placed before the first row without a publish date. Pages after a dated key
+         * only hold dated rows; once they run out, continue with this key.
+         */
+        public static final String PAGE_KEY_UNDATED = buildPageKey(null, Long.MAX_VALUE);
+
+        /**
+         * @param key a page key built by {@link #buildPageKey(Long, long)}, or null
+         * @return true if the key is of a row with a publish date
+         */
+        public static boolean isDatedPageKey(String key) {
+            return key != null && !key.startsWith(",");
+        }
     }
 }
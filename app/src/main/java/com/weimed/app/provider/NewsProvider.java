@@ -1,20 +1,39 @@
 package com.weimed.app.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
+import android.os.Bundle;
 
+import com.weimed.app.database.InsertStatementCache;
 import com.weimed.app.database.SelectionBuilder;
 
+import java.util.ArrayList;
+
 public class NewsProvider extends ContentProvider {
 
     TodoDatabase database;
 
+    /**
+     * Coalesces change notifications for all writes.
+     */
+    private ChangeNotifier mNotifier;
+
+    /**
+     * Compiled insert statements for the batch running on the current thread, or null when no
+     * batch is in progress.
+     */
+    private final ThreadLocal<InsertStatementCache> mBatchInserter =
+            new ThreadLocal<InsertStatementCache>();
+
     /**
      * Content authority for this provider.
      */
@@ -36,6 +55,36 @@ public class NewsProvider extends ContentProvider {
      */
     public static final int ROUTE_ENTRIES_ID = 2;
 
+    /**
+     * URI ID for route: /entries/{ID}/body
+     */
+    public static final int ROUTE_ENTRIES_ID_BODY = 3;
+
+    /**
+     * Entries joined with their bodies, for queries that ask for a body column.
+     */
+    private static final String ENTRY_JOIN_BODY = NewsContract.Entry.TABLE_NAME +
+            " LEFT OUTER JOIN " + NewsContract.Entry.BODY_TABLE_NAME + " ON " +
+            NewsContract.Entry.TABLE_NAME + "." + NewsContract.Entry._ID + "=" +
+            NewsContract.Entry.BODY_TABLE_NAME + "." + NewsContract.Entry._ID;
+
+    /**
+     * Columns stored in the body table rather than the entry table.
+     */
+    private static final String[] BODY_COLUMNS = new String[] {
+            NewsContract.Entry.COLUMN_CONTENT,
+            NewsContract.Entry.COLUMN_HTML
+    };
+
+    /**
+     * Default projection for body queries.
+     */
+    private static final String[] BODY_PROJECTION = new String[] {
+            NewsContract.Entry._ID,
+            NewsContract.Entry.COLUMN_CONTENT,
+            NewsContract.Entry.COLUMN_HTML
+    };
+
     /**
      * UriMatcher, used to decode incoming URIs.
      */
@@ -43,6 +92,7 @@ public class NewsProvider extends ContentProvider {
     static {
         sUriMatcher.addURI(AUTHORITY, "entries", ROUTE_ENTRIES);
         sUriMatcher.addURI(AUTHORITY, "entries/*", ROUTE_ENTRIES_ID);
+        sUriMatcher.addURI(AUTHORITY, "entries/*/body", ROUTE_ENTRIES_ID_BODY);
     }
 
     public NewsProvider() {
@@ -63,6 +113,7 @@ public class NewsProvider extends ContentProvider {
         int count;
         switch (match) {
             case ROUTE_ENTRIES:
+                // Bodies are removed with their entries by a trigger.
                 count = builder.table(NewsContract.Entry.TABLE_NAME)
                         .where(selection, selectionArgs)
                         .delete(sqlite);
@@ -74,13 +125,13 @@ public class NewsProvider extends ContentProvider {
                         .where(selection, selectionArgs)
                         .delete(sqlite);
                 break;
+            case ROUTE_ENTRIES_ID_BODY:
+                throw new UnsupportedOperationException("Delete not supported on URI: " + uri);
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Send broadcast to registered ContentObservers, to refresh UI.
-        Context ctx = getContext();
-        assert ctx != null;
-        ctx.getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return count;
     }
 
@@ -98,13 +149,16 @@ public class NewsProvider extends ContentProvider {
                 return NewsContract.Entry.CONTENT_TYPE;
             case ROUTE_ENTRIES_ID:
                 return NewsContract.Entry.CONTENT_ITEM_TYPE;
+            case ROUTE_ENTRIES_ID_BODY:
+                return NewsContract.Entry.CONTENT_BODY_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
     }
 
     /**
-     * Insert a new entry into the database.
+     * Insert a new entry into the database. Body columns, if given, are written to the body table
+     * in the same transaction.
      * @param uri
      * @param values
      * @return
@@ -117,31 +171,154 @@ public class NewsProvider extends ContentProvider {
         Uri result;
         switch (match) {
             case ROUTE_ENTRIES:
-                long id = sqlite.insertOrThrow(NewsContract.Entry.TABLE_NAME, null, values);
-                result = Uri.parse(NewsContract.Entry.CONTENT_URI + "/" + id);
+                InsertStatementCache inserter = mBatchInserter.get();
+                long id;
+                if (inserter != null) {
+                    // Already inside the batch transaction.
+                    id = insertEntry(sqlite, inserter, values);
+                } else {
+                    sqlite.beginTransaction();
+                    try {
+                        id = insertEntry(sqlite, null, values);
+                        sqlite.setTransactionSuccessful();
+                    } finally {
+                        sqlite.endTransaction();
+                    }
+                }
+                result = NewsContract.Entry.buildEntryUri(id);
                 break;
             case ROUTE_ENTRIES_ID:
+            case ROUTE_ENTRIES_ID_BODY:
                 throw new UnsupportedOperationException("Insert not supported on URI: " + uri);
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
         // Send broadcast to registered ContentObservers, to refresh UI.
-        Context ctx = getContext();
-        assert ctx != null;
-        ctx.getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return result;
     }
 
+    /**
+     * Insert many entries in a single transaction, reusing one compiled statement for all rows
+     * and sending one change notification at the end.
+     * @param uri
+     * @param values
+     * @return number of rows inserted
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
+            case ROUTE_ENTRIES:
+                break;
+            case ROUTE_ENTRIES_ID:
+            case ROUTE_ENTRIES_ID_BODY:
+                throw new UnsupportedOperationException("Insert not supported on URI: " + uri);
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+        final SQLiteDatabase sqlite = database.getWritableDatabase();
+        final InsertStatementCache inserter = new InsertStatementCache(sqlite);
+        mNotifier.beginBatch();
+        sqlite.beginTransaction();
+        try {
+            for (ContentValues row : values) {
+                insertEntry(sqlite, inserter, row);
+            }
+            sqlite.setTransactionSuccessful();
+            if (values.length > 0) {
+                notifyChange(uri);
+            }
+        } finally {
+            sqlite.endTransaction();
+            inserter.close();
+            mNotifier.endBatch();
+        }
+        return values.length;
+    }
+
+    /**
+     * Apply a batch of operations in a single transaction. Inserts reuse compiled statements,
+     * operations marked {@code withYieldAllowed} let other connections in, and observers receive
+     * one change notification once the batch has committed.
+     * @param operations
+     * @return results, one per operation
+     * @throws OperationApplicationException if any operation fails; the whole batch is rolled back
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase sqlite = database.getWritableDatabase();
+        final InsertStatementCache inserter = new InsertStatementCache(sqlite);
+        final int count = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[count];
+        mBatchInserter.set(inserter);
+        mNotifier.beginBatch();
+        sqlite.beginTransaction();
+        try {
+            for (int i = 0; i < count; i++) {
+                final ContentProviderOperation operation = operations.get(i);
+                if (i > 0 && operation.isYieldAllowed()) {
+                    sqlite.yieldIfContendedSafely();
+                }
+                results[i] = operation.apply(this, results, i);
+            }
+            sqlite.setTransactionSuccessful();
+        } finally {
+            sqlite.endTransaction();
+            mBatchInserter.remove();
+            inserter.close();
+            mNotifier.endBatch();
+        }
+        return results;
+    }
+
     @Override
     public boolean onCreate() {
-        database = new TodoDatabase(getContext());
+        Context ctx = getContext();
+        assert ctx != null;
+        database = new TodoDatabase(ctx);
+        mNotifier = new ChangeNotifier(ctx.getContentResolver());
         return true;
     }
 
+    /**
+     * Provider-specific methods.
+     * <p>Supports {@link NewsContract#METHOD_BEGIN_BATCH} and {@link NewsContract#METHOD_END_BATCH},
+     * which let a caller such as the sync adapter group several transactions so that observers are
+     * notified once, when the outermost batch ends. Every begin must be paired with an end.</p>
+     * @param method
+     * @param arg
+     * @param extras
+     * @return null
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (NewsContract.METHOD_BEGIN_BATCH.equals(method)) {
+            mNotifier.beginBatch();
+        } else if (NewsContract.METHOD_END_BATCH.equals(method)) {
+            mNotifier.endBatch();
+        } else {
+            return super.call(method, arg, extras);
+        }
+        return null;
+    }
+
     /**
      * Perform a database query by URI.
-     * <p>Currently supports returning all entries (/entries) and individual entries by ID (/entries/{ID}).</p>
+     * <p>Currently supports returning all entries (/entries), individual entries by ID
+     * (/entries/{ID}) and the body of an entry (/entries/{ID}/body).</p>
+     * <p>Entry queries only join in the body table when a body column
+     * ({@link NewsContract.Entry#COLUMN_CONTENT}, {@link NewsContract.Entry#COLUMN_HTML}) is part
+     * of the projection, so list queries never read article bodies. Since _ID is then ambiguous,
+     * selections passed with such a projection must qualify it with the table name. Body queries
+     * always join, and may also ask for entry columns.</p>
+     * <p>Directory queries can be paged with {@link NewsContract.Entry#QUERY_PARAMETER_LIMIT} and
+     * {@link NewsContract.Entry#QUERY_PARAMETER_BEFORE}. Pages after a key start with a range
+     * seek on the (publishedat, _id) index, so fetching a page costs the same however deep it is.
+     * Pages after a dated key only hold dated rows; the rows without a date follow from
+     * {@link NewsContract.Entry#PAGE_KEY_UNDATED}.</p>
      * @param uri
      * @param projection
      * @param selection
@@ -155,29 +332,57 @@ public class NewsProvider extends ContentProvider {
         SQLiteDatabase sqlite = database.getReadableDatabase();
         SelectionBuilder builder = new SelectionBuilder();
         int urlMatch = sUriMatcher.match(uri);
+        Cursor c;
         switch (urlMatch) {
+            case ROUTE_ENTRIES_ID_BODY:
+                // Return the body of a single entry.
+                joinBody(builder)
+                       .where(NewsContract.Entry.TABLE_NAME + "." + NewsContract.Entry._ID + "=?",
+                               uri.getPathSegments().get(1))
+                       .where(selection, selectionArgs);
+                c = builder.query(sqlite, projection != null ? projection : BODY_PROJECTION,
+                        sortOrder);
+                break;
             case ROUTE_ENTRIES_ID:
                 // Return a single entry, by ID.
                 String id = uri.getLastPathSegment();
-                builder.where(NewsContract.Entry._ID + "=?", id);
+                builder.where(NewsContract.Entry.TABLE_NAME + "." + NewsContract.Entry._ID + "=?", id);
             case ROUTE_ENTRIES:
                 // Return all known entries.
-                builder.table(NewsContract.Entry.TABLE_NAME)
-                       .where(selection, selectionArgs);
-                Cursor c = builder.query(sqlite, projection, sortOrder);
-                // Note: Notification URI must be manually set here for loaders to correctly
-                // register ContentObservers.
-                Context ctx = getContext();
-                assert ctx != null;
-                c.setNotificationUri(ctx.getContentResolver(), uri);
-                return c;
+                if (containsBodyColumn(projection)) {
+                    joinBody(builder);
+                } else {
+                    builder.table(NewsContract.Entry.TABLE_NAME);
+                }
+                builder.where(selection, selectionArgs);
+                String limit = uri.getQueryParameter(NewsContract.Entry.QUERY_PARAMETER_LIMIT);
+                String before = uri.getQueryParameter(NewsContract.Entry.QUERY_PARAMETER_BEFORE);
+                if (limit != null || before != null) {
+                    if (limit != null) {
+                        // Reject anything but a plain count; it is pasted into the LIMIT clause.
+                        limit = Integer.toString(Integer.parseInt(limit));
+                    }
+                    if (before != null) {
+                        whereBefore(builder, before);
+                    }
+                    sortOrder = NewsContract.Entry.PAGE_SORT_ORDER;
+                }
+                c = builder.query(sqlite, projection, null, null, sortOrder, limit);
+                break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
+        // Note: Notification URI must be manually set here for loaders to correctly
+        // register ContentObservers.
+        Context ctx = getContext();
+        assert ctx != null;
+        c.setNotificationUri(ctx.getContentResolver(), uri.buildUpon().clearQuery().build());
+        return c;
     }
 
     /**
-     * Update an entry in the database by URI.
+     * Update an entry in the database by URI. Body columns can only be updated through an
+     * individual entry URI.
      * @param uri
      * @param values
      * @param selection
@@ -193,26 +398,201 @@ public class NewsProvider extends ContentProvider {
         int count;
         switch (match) {
             case ROUTE_ENTRIES:
+                if (containsBodyValue(values)) {
+                    throw new UnsupportedOperationException(
+                            "Bodies can only be updated per entry, not on URI: " + uri);
+                }
                 count = builder.table(NewsContract.Entry.TABLE_NAME)
                         .where(selection, selectionArgs)
                         .update(sqlite, values);
                 break;
             case ROUTE_ENTRIES_ID:
                 String id = uri.getLastPathSegment();
-                count = builder.table(NewsContract.Entry.TABLE_NAME)
+                builder.table(NewsContract.Entry.TABLE_NAME)
                         .where(NewsContract.Entry._ID + "=?", id)
-                        .where(selection, selectionArgs)
-                        .update(sqlite, values);
+                        .where(selection, selectionArgs);
+                if (!containsBodyValue(values)) {
+                    count = builder.update(sqlite, values);
+                    break;
+                }
+                sqlite.beginTransaction();
+                try {
+                    count = updateEntryWithBody(sqlite, builder, Long.parseLong(id), values);
+                    sqlite.setTransactionSuccessful();
+                } finally {
+                    sqlite.endTransaction();
+                }
                 break;
+            case ROUTE_ENTRIES_ID_BODY:
+                throw new UnsupportedOperationException("Update not supported on URI: " + uri);
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        Context ctx = getContext();
-        assert ctx != null;
-        ctx.getContentResolver().notifyChange(uri, null, false);
+        notifyChange(uri);
         return count;
     }
 
+    /**
+     * Insert an entry row, then its body if any body column is present. Must be called inside a
+     * transaction.
+     * @param db
+     * @param inserter compiled statements to reuse, or null
+     * @param values entry columns, optionally including body columns
+     * @return _ID of the new entry
+     */
+    private static long insertEntry(SQLiteDatabase db, InsertStatementCache inserter,
+            ContentValues values) {
+        ContentValues entryValues = values;
+        ContentValues body = null;
+        if (containsBodyValue(values)) {
+            entryValues = new ContentValues(values);
+            body = removeBodyValues(entryValues);
+        }
+        final long id = inserter != null
+                ? inserter.insert(NewsContract.Entry.TABLE_NAME, entryValues)
+                : db.insertOrThrow(NewsContract.Entry.TABLE_NAME, null, entryValues);
+        if (body != null) {
+            body.put(NewsContract.Entry._ID, id);
+            if (inserter != null) {
+                inserter.insert(NewsContract.Entry.BODY_TABLE_NAME, body);
+            } else {
+                db.insertOrThrow(NewsContract.Entry.BODY_TABLE_NAME, null, body);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Update one entry and its body. Body columns not given keep their values. Must be called
+     * inside a transaction.
+     * @param db
+     * @param builder selection matching the entry
+     * @param id _ID of the entry
+     * @param values entry columns including at least one body column
+     * @return number of entries matched
+     */
+    private static int updateEntryWithBody(SQLiteDatabase db, SelectionBuilder builder, long id,
+            ContentValues values) {
+        ContentValues entryValues = new ContentValues(values);
+        ContentValues body = removeBodyValues(entryValues);
+        int count;
+        if (entryValues.size() > 0) {
+            count = builder.update(db, entryValues);
+        } else {
+            Cursor c = builder.query(db, new String[] {NewsContract.Entry._ID}, null);
+            try {
+                count = c.getCount();
+            } finally {
+                c.close();
+            }
+        }
+        if (count > 0) {
+            final String[] whereArgs = new String[] {Long.toString(id)};
+            if (db.update(NewsContract.Entry.BODY_TABLE_NAME, body,
+                    NewsContract.Entry._ID + "=?", whereArgs) == 0) {
+                body.put(NewsContract.Entry._ID, id);
+                db.insertOrThrow(NewsContract.Entry.BODY_TABLE_NAME, null, body);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Move the body columns out of a set of entry values.
+     * @param entryValues values to remove the body columns from
+     * @return the removed body columns
+     */
+    private static ContentValues removeBodyValues(ContentValues entryValues) {
+        ContentValues body = new ContentValues(BODY_COLUMNS.length + 1);
+        for (String column : BODY_COLUMNS) {
+            if (entryValues.containsKey(column)) {
+                body.put(column, entryValues.getAsString(column));
+                entryValues.remove(column);
+            }
+        }
+        return body;
+    }
+
+    private static boolean containsBodyValue(ContentValues values) {
+        for (String column : BODY_COLUMNS) {
+            if (values.containsKey(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Select from entries joined with their bodies.
+     * @param builder
+     * @return builder, for chaining
+     */
+    private static SelectionBuilder joinBody(SelectionBuilder builder) {
+        builder.table(ENTRY_JOIN_BODY)
+               .mapToTable(NewsContract.Entry._ID, NewsContract.Entry.TABLE_NAME);
+        for (String column : BODY_COLUMNS) {
+            builder.mapToTable(column, NewsContract.Entry.BODY_TABLE_NAME);
+        }
+        return builder;
+    }
+
+    /**
+     * Restrict a query to the rows following a page key in
+     * {@link NewsContract.Entry#PAGE_SORT_ORDER}. Each predicate bounds publishedat by a single
+     * range or equality, which SQLite answers by seeking the index; a single OR across the dated
+     * and undated rows would make it scan instead. Dated keys therefore only reach the dated rows.
+     * @param builder
+     * @param before page key built by {@link NewsContract.Entry#buildPageKey(Long, long)}
+     * @throws IllegalArgumentException if the key is malformed
+     */
+    private static void whereBefore(SelectionBuilder builder, String before) {
+        final int comma = before.indexOf(',');
+        if (comma < 0) {
+            throw new IllegalArgumentException("Invalid page key: " + before);
+        }
+        final String publishedAt = before.substring(0, comma);
+        final String id = Long.toString(Long.parseLong(before.substring(comma + 1)));
+        final String publishedAtColumn =
+                NewsContract.Entry.TABLE_NAME + "." + NewsContract.Entry.COLUMN_PUBLISHEDAT;
+        final String idColumn = NewsContract.Entry.TABLE_NAME + "." + NewsContract.Entry._ID;
+        if (publishedAt.length() == 0) {
+            // Rows without a date sort after all dated rows; only older _IDs remain.
+            builder.where(publishedAtColumn + " IS NULL AND " + idColumn + "<?", id);
+        } else {
+            final String date = Long.toString(Long.parseLong(publishedAt));
+            // The seek is on publishedat<=?; the rest only filters out the rows with the same
+            // date that were already shown.
+            builder.where(publishedAtColumn + "<=? AND (" + publishedAtColumn + "<? OR " +
+                    idColumn + "<?)", date, date, id);
+        }
+    }
+
+    private static boolean containsBodyColumn(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String p : projection) {
+            for (String column : BODY_COLUMNS) {
+                // Also accept the qualified name, e.g. from a projection mapped by a previous query.
+                if (column.equals(p)
+                        || (NewsContract.Entry.BODY_TABLE_NAME + "." + column).equals(p)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Schedule a change notification to registered ContentObservers. Notifications are coalesced
+     * by {@link ChangeNotifier}: delivered once per URI after a short debounce window, or when the
+     * enclosing batch ends.
+     * @param uri
+     */
+    private void notifyChange(Uri uri) {
+        mNotifier.markDirty(uri);
+    }
+
     /**
      * SQLite backend for @{link NewsProvider}.
      *
@@ -220,32 +600,95 @@ public class NewsProvider extends ContentProvider {
      * database should never be accessed by other parts of the application directly.
      */
     static class TodoDatabase extends SQLiteOpenHelper {
-        /** Schema version. */
-        public static final int DATABASE_VERSION = 1;
+        /**
+         * Schema version.
+         * <ul>
+         * <li>1: initial "entry" table.</li>
+         * <li>2: adds "hash" column.</li>
+         * <li>3: dates stored as INTEGER epoch milliseconds; UNIQUE index on entry_id, index on
+         *        publishedat.</li>
+         * <li>4: content moved to "entry_body" table.</li>
+         * <li>5: adds "html" column to "entry_body".</li>
+         * </ul>
+         */
+        public static final int DATABASE_VERSION = 5;
         /** Filename for SQLite file. */
         public static final String DATABASE_NAME = "newsblaze.db";
 
         private static final String TYPE_TEXT = " TEXT";
         private static final String TYPE_INTEGER = " INTEGER";
-        private static final String TYPE_DATETIME = " DATETIME";
         private static final String COMMA_SEP = ",";
         /** SQL statement to create "entry" table. */
         private static final String SQL_CREATE_ENTRIES =
                 "CREATE TABLE " + NewsContract.Entry.TABLE_NAME + " (" +
                         NewsContract.Entry._ID + " INTEGER PRIMARY KEY," +
-                        NewsContract.Entry.COLUMN_ENTRY_ID + TYPE_TEXT + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_ENTRY_ID + TYPE_TEXT + " NOT NULL" + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_TITLE    + TYPE_TEXT + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_PUBLISHER + TYPE_TEXT + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_PICURL   + TYPE_TEXT + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_ORIGINALURL + TYPE_TEXT + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_CREATEDAT + TYPE_INTEGER + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_UPDATEDAT + TYPE_INTEGER + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_PUBLISHEDAT+ TYPE_INTEGER + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_HASH + TYPE_TEXT + ")";
+
+        /** SQL statement to create "entry_body" table. */
+        private static final String SQL_CREATE_BODIES =
+                "CREATE TABLE " + NewsContract.Entry.BODY_TABLE_NAME + " (" +
+                        NewsContract.Entry._ID + " INTEGER PRIMARY KEY," +
+                        NewsContract.Entry.COLUMN_CONTENT + TYPE_TEXT + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_HTML + TYPE_TEXT + ")";
+
+        /** SQL statement that created "entry_body" in version 4. Used by upgrades only. */
+        private static final String SQL_CREATE_BODIES_V4 =
+                "CREATE TABLE " + NewsContract.Entry.BODY_TABLE_NAME + " (" +
+                        NewsContract.Entry._ID + " INTEGER PRIMARY KEY," +
+                        NewsContract.Entry.COLUMN_CONTENT + TYPE_TEXT + ")";
+
+        /** SQL statement to create the trigger which deletes bodies with their entries. */
+        private static final String SQL_CREATE_BODY_CLEANUP_TRIGGER =
+                "CREATE TRIGGER IF NOT EXISTS " + NewsContract.Entry.BODY_TABLE_NAME + "_cleanup" +
+                        " AFTER DELETE ON " + NewsContract.Entry.TABLE_NAME + " BEGIN DELETE FROM " +
+                        NewsContract.Entry.BODY_TABLE_NAME + " WHERE " + NewsContract.Entry._ID +
+                        "=OLD." + NewsContract.Entry._ID + "; END";
+
+        /** SQL statement that created "entry" in versions 3 and below. Used by upgrades only. */
+        private static final String SQL_CREATE_ENTRIES_V3 =
+                "CREATE TABLE " + NewsContract.Entry.TABLE_NAME + " (" +
+                        NewsContract.Entry._ID + " INTEGER PRIMARY KEY," +
+                        NewsContract.Entry.COLUMN_ENTRY_ID + TYPE_TEXT + " NOT NULL" + COMMA_SEP +
                         NewsContract.Entry.COLUMN_TITLE    + TYPE_TEXT + COMMA_SEP +
                         NewsContract.Entry.COLUMN_CONTENT  + TYPE_TEXT + COMMA_SEP +
                         NewsContract.Entry.COLUMN_PUBLISHER + TYPE_TEXT + COMMA_SEP +
                         NewsContract.Entry.COLUMN_PICURL   + TYPE_TEXT + COMMA_SEP +
                         NewsContract.Entry.COLUMN_ORIGINALURL + TYPE_TEXT + COMMA_SEP +
-                        NewsContract.Entry.COLUMN_CREATEDAT + TYPE_DATETIME + COMMA_SEP +
-                        NewsContract.Entry.COLUMN_UPDATEDAT + TYPE_DATETIME + COMMA_SEP +
-                        NewsContract.Entry.COLUMN_PUBLISHEDAT+ TYPE_DATETIME + ")";
+                        NewsContract.Entry.COLUMN_CREATEDAT + TYPE_INTEGER + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_UPDATEDAT + TYPE_INTEGER + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_PUBLISHEDAT+ TYPE_INTEGER + COMMA_SEP +
+                        NewsContract.Entry.COLUMN_HASH + TYPE_TEXT + ")";
+
+        /** SQL statement to create the unique index used by the sync merge. */
+        private static final String SQL_CREATE_ENTRY_ID_INDEX =
+                "CREATE UNIQUE INDEX IF NOT EXISTS " + NewsContract.Entry.TABLE_NAME + "_entry_id ON " +
+                        NewsContract.Entry.TABLE_NAME + " (" + NewsContract.Entry.COLUMN_ENTRY_ID + ")";
+
+        /**
+         * SQL statement to create the index used by the list sort. SQLite appends the rowid (_ID)
+         * to every index entry, so this also serves ORDER BY publishedat, _id.
+         */
+        private static final String SQL_CREATE_PUBLISHEDAT_INDEX =
+                "CREATE INDEX IF NOT EXISTS " + NewsContract.Entry.TABLE_NAME + "_publishedat ON " +
+                        NewsContract.Entry.TABLE_NAME + " (" + NewsContract.Entry.COLUMN_PUBLISHEDAT + ")";
 
-        /** SQL statement to drop "entry" table. */
-        private static final String SQL_DELETE_ENTRIES =
-                "DROP TABLE IF EXISTS " + NewsContract.Entry.TABLE_NAME;
+        /** SQL statement to add the "hash" column (version 1 to 2). */
+        private static final String SQL_ADD_HASH =
+                "ALTER TABLE " + NewsContract.Entry.TABLE_NAME +
+                        " ADD COLUMN " + NewsContract.Entry.COLUMN_HASH + TYPE_TEXT;
+
+        /** SQL statement to add the "html" column (version 4 to 5). */
+        private static final String SQL_ADD_HTML =
+                "ALTER TABLE " + NewsContract.Entry.BODY_TABLE_NAME +
+                        " ADD COLUMN " + NewsContract.Entry.COLUMN_HTML + TYPE_TEXT;
 
         public TodoDatabase(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -254,14 +697,118 @@ public class NewsProvider extends ContentProvider {
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(SQL_CREATE_ENTRIES);
+            db.execSQL(SQL_CREATE_BODIES);
+            db.execSQL(SQL_CREATE_ENTRY_ID_INDEX);
+            db.execSQL(SQL_CREATE_PUBLISHEDAT_INDEX);
+            db.execSQL(SQL_CREATE_BODY_CLEANUP_TRIGGER);
         }
 
+        /**
+         * Upgrade one version at a time, keeping existing rows. The sync cursor is not reset on
+         * upgrade, so discarding rows would leave the table empty until the next full sync.
+         * onUpgrade() already runs inside a transaction.
+         */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // This database is only a cache for online data, so its upgrade policy is
-            // to simply to discard the data and start over
-            db.execSQL(SQL_DELETE_ENTRIES);
-            onCreate(db);
+            if (oldVersion < 2) {
+                // A NULL hash simply never matches, and is filled in by the next merge.
+                db.execSQL(SQL_ADD_HASH);
+            }
+            if (oldVersion < 3) {
+                upgradeToEpochTimestamps(db);
+            }
+            if (oldVersion < 4) {
+                upgradeToSeparateBodies(db);
+            }
+            if (oldVersion < 5) {
+                // Bodies without HTML are rendered by the reader until the sync next rewrites them.
+                db.execSQL(SQL_ADD_HTML);
+            }
+        }
+
+        /**
+         * Version 2 to 3: rebuild the table with INTEGER dates and indexes. SQLite cannot change a
+         * column type in place, so rows are copied into a new table. Text dates are converted to
+         * epoch milliseconds (unparseable ones become NULL), duplicate entry_ids keep their newest
+         * row so the UNIQUE index can be built, and hashes are cleared. The sync cursor is kept,
+         * so an incremental sync only rewrites rows the feed sends again; the others keep their
+         * converted values until they change or a full sync runs.
+         */
+        private static void upgradeToEpochTimestamps(SQLiteDatabase db) {
+            final String table = NewsContract.Entry.TABLE_NAME;
+            final String oldTable = table + "_v2";
+            db.execSQL("ALTER TABLE " + table + " RENAME TO " + oldTable);
+            db.execSQL(SQL_CREATE_ENTRIES_V3);
+            db.execSQL("INSERT INTO " + table + " (" +
+                    NewsContract.Entry._ID + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_ENTRY_ID + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_TITLE + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_CONTENT + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_PUBLISHER + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_PICURL + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_ORIGINALURL + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_CREATEDAT + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_UPDATEDAT + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_PUBLISHEDAT + ") SELECT " +
+                    NewsContract.Entry._ID + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_ENTRY_ID + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_TITLE + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_CONTENT + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_PUBLISHER + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_PICURL + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_ORIGINALURL + COMMA_SEP +
+                    toEpochMillis(NewsContract.Entry.COLUMN_CREATEDAT) + COMMA_SEP +
+                    toEpochMillis(NewsContract.Entry.COLUMN_UPDATEDAT) + COMMA_SEP +
+                    toEpochMillis(NewsContract.Entry.COLUMN_PUBLISHEDAT) +
+                    " FROM " + oldTable +
+                    " WHERE " + NewsContract.Entry.COLUMN_ENTRY_ID + " IS NOT NULL AND " +
+                    NewsContract.Entry._ID + " IN (SELECT MAX(" + NewsContract.Entry._ID + ") FROM " +
+                    oldTable + " GROUP BY " + NewsContract.Entry.COLUMN_ENTRY_ID + ")");
+            db.execSQL("DROP TABLE " + oldTable);
+            db.execSQL(SQL_CREATE_ENTRY_ID_INDEX);
+            db.execSQL(SQL_CREATE_PUBLISHEDAT_INDEX);
+        }
+
+        /**
+         * Version 3 to 4: move content into its own table so that list queries no longer page it
+         * in. The entry table is rebuilt without the column; _IDs and hashes are kept, so the
+         * next sync sees every row as unchanged.
+         */
+        private static void upgradeToSeparateBodies(SQLiteDatabase db) {
+            final String table = NewsContract.Entry.TABLE_NAME;
+            final String oldTable = table + "_v3";
+            final String columns =
+                    NewsContract.Entry._ID + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_ENTRY_ID + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_TITLE + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_PUBLISHER + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_PICURL + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_ORIGINALURL + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_CREATEDAT + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_UPDATEDAT + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_PUBLISHEDAT + COMMA_SEP +
+                    NewsContract.Entry.COLUMN_HASH;
+            db.execSQL("ALTER TABLE " + table + " RENAME TO " + oldTable);
+            db.execSQL(SQL_CREATE_ENTRIES);
+            db.execSQL(SQL_CREATE_BODIES_V4);
+            db.execSQL("INSERT INTO " + table + " (" + columns + ") SELECT " + columns +
+                    " FROM " + oldTable);
+            db.execSQL("INSERT INTO " + NewsContract.Entry.BODY_TABLE_NAME + " (" +
+                    NewsContract.Entry._ID + COMMA_SEP + NewsContract.Entry.COLUMN_CONTENT +
+                    ") SELECT " +
+                    NewsContract.Entry._ID + COMMA_SEP + NewsContract.Entry.COLUMN_CONTENT +
+                    " FROM " + oldTable + " WHERE " + NewsContract.Entry.COLUMN_CONTENT +
+                    " IS NOT NULL");
+            // Dropping the old table also drops its indexes, which are then rebuilt by name.
+            db.execSQL("DROP TABLE " + oldTable);
+            db.execSQL(SQL_CREATE_ENTRY_ID_INDEX);
+            db.execSQL(SQL_CREATE_PUBLISHEDAT_INDEX);
+            db.execSQL(SQL_CREATE_BODY_CLEANUP_TRIGGER);
+        }
+
+        /** SQL expression converting an ISO 8601 text column to epoch milliseconds. */
+        private static String toEpochMillis(String column) {
+            return "CAST(strftime('%s', " + column + ") AS INTEGER) * 1000";
         }
     }
 }
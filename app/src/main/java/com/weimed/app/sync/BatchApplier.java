@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.weimed.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Applies {@link ContentProviderOperation}s in bounded chunks rather than as one batch.
+ *
+ * <p>Operations are buffered until {@code chunkSize} of them are pending, then applied with a
+ * single {@link ContentResolver#applyBatch(String, ArrayList)}. Within a chunk every
+ * {@link #YIELD_INTERVAL}th operation is marked {@code withYieldAllowed}, so a provider that
+ * honors yield points can let readers in mid-transaction. Memory use is therefore bounded by the
+ * chunk size regardless of how large the sync is.
+ *
+ * <p>Chunks commit independently: if a sync fails part way, earlier chunks stay applied. Callers
+ * must only advance their sync high-water mark after {@link #flush()} succeeds, so the next sync
+ * replays the remainder.
+ *
+ * This class is <em>not</em> thread safe.
+ */
+class BatchApplier {
+    private static final String TAG = "BatchApplier";
+
+    /**
+     * Default number of operations applied per chunk.
+     */
+    static final int DEFAULT_CHUNK_SIZE = 200;
+
+    /**
+     * Number of operations between yield points inside a chunk.
+     */
+    static final int YIELD_INTERVAL = 50;
+
+    private final ContentResolver mContentResolver;
+    private final String mAuthority;
+    private final int mChunkSize;
+    private final ArrayList<ContentProviderOperation> mPending;
+
+    // Metrics
+    private int mChunks = 0;
+    private int mAppliedOps = 0;
+    private long mApplyMillis = 0;
+
+    /**
+     * @param contentResolver Resolver to apply operations through.
+     * @param authority Content authority the operations target.
+     * @param chunkSize Maximum number of operations per applyBatch call. Values below one are
+     *                  replaced by {@link #DEFAULT_CHUNK_SIZE}.
+     */
+    BatchApplier(ContentResolver contentResolver, String authority, int chunkSize) {
+        mContentResolver = contentResolver;
+        mAuthority = authority;
+        mChunkSize = chunkSize > 0 ? chunkSize : DEFAULT_CHUNK_SIZE;
+        mPending = new ArrayList<ContentProviderOperation>(mChunkSize);
+    }
+
+    /**
+     * Queue an operation, applying the pending chunk if it is full.
+     *
+     * @param builder Operation to queue. Yield points are set here; callers should not.
+     */
+    void add(ContentProviderOperation.Builder builder)
+            throws RemoteException, OperationApplicationException {
+        int position = mPending.size();
+        if (position > 0 && position % YIELD_INTERVAL == 0) {
+            builder.withYieldAllowed(true);
+        }
+        mPending.add(builder.build());
+        if (mPending.size() >= mChunkSize) {
+            flush();
+        }
+    }
+
+    /**
+     * Apply any pending operations.
+     */
+    void flush() throws RemoteException, OperationApplicationException {
+        if (mPending.isEmpty()) {
+            return;
+        }
+        final int count = mPending.size();
+        final long start = SystemClock.elapsedRealtime();
+        mContentResolver.applyBatch(mAuthority, mPending);
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+
+        mChunks++;
+        mAppliedOps += count;
+        mApplyMillis += elapsed;
+        Log.i(TAG, "Applied chunk " + mChunks + ": " + count + " ops in " + elapsed + " ms ("
+                + opsPerSecond(count, elapsed) + " ops/sec)");
+        mPending.clear();
+    }
+
+    /**
+     * Log totals for all chunks applied so far.
+     */
+    void logSummary() {
+        Log.i(TAG, "Applied " + mAppliedOps + " ops in " + mChunks + " chunks, "
+                + mApplyMillis + " ms in transactions ("
+                + opsPerSecond(mAppliedOps, mApplyMillis) + " ops/sec)");
+    }
+
+    private static long opsPerSecond(int ops, long millis) {
+        return millis > 0 ? ops * 1000L / millis : ops;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.weimed.app.sync;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.content.SyncResult;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.commonsware.cwac.anddown.AndDown;
+import com.weimed.app.provider.NewsContract;
+import com.weimed.app.utils.JSONParser;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Computes the minimal set of {@link ContentProviderOperation}s needed to bring the local entry
+ * table in line with incoming articles, handing them to a {@link BatchApplier} as they are found.
+ *
+ * <p>Every row carries a {@link NewsContract.Entry#COLUMN_HASH} over its synced columns. Only the
+ * (entry_id, _ID, hash) triple of each local row is held in memory, so unchanged articles are
+ * recognized without reading any bodies and produce no write at all. When the hash differs, the
+ * local row is read once and only the columns whose values actually changed (plus the hash) are
+ * updated.
+ *
+ * <p>Whenever content is written, its markdown is also rendered to HTML here, on the sync thread,
+ * and stored as {@link NewsContract.Entry#COLUMN_HTML}, so readers don't have to convert it. The
+ * HTML is derived from the content and is not part of the hash.
+ *
+ * <p>Usage: construct, call {@link #merge(JSONObject)} for each incoming article, then
+ * {@link #finish(boolean)}. Operations are applied in chunks by the {@link BatchApplier}.
+ *
+ * This class is <em>not</em> thread safe.
+ */
+class EntryMerger {
+    private static final String TAG = "EntryMerger";
+
+    /**
+     * Columns populated from the feed, in hashing order.
+     */
+    static final String[] MERGED_COLUMNS = new String[] {
+            NewsContract.Entry.COLUMN_ENTRY_ID,
+            NewsContract.Entry.COLUMN_TITLE,
+            NewsContract.Entry.COLUMN_CONTENT,
+            NewsContract.Entry.COLUMN_PUBLISHER,
+            NewsContract.Entry.COLUMN_PICURL,
+            NewsContract.Entry.COLUMN_ORIGINALURL,
+            NewsContract.Entry.COLUMN_CREATEDAT,
+            NewsContract.Entry.COLUMN_UPDATEDAT,
+            NewsContract.Entry.COLUMN_PUBLISHEDAT
+    };
+
+    /**
+     * Projection used to key the merge. Article bodies are never loaded here.
+     */
+    private static final String[] KEY_PROJECTION = new String[] {
+            NewsContract.Entry._ID,
+            NewsContract.Entry.COLUMN_ENTRY_ID,
+            NewsContract.Entry.COLUMN_HASH
+    };
+
+    // Constants representing column positions from KEY_PROJECTION.
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_ENTRY_ID = 1;
+    private static final int COLUMN_HASH = 2;
+
+    private final ContentResolver mContentResolver;
+    private final SyncResult mSyncResult;
+    private final HashMap<String, LocalEntry> mLocalMap;
+    private final HashSet<String> mSeen = new HashSet<String>();
+    private final BatchApplier mApplier;
+    private final AndDown mRenderer = new AndDown();
+
+    /**
+     * Load the merge keys of all local entries.
+     *
+     * @param contentResolver Resolver used to read local rows.
+     * @param applier Receives the scheduled operations.
+     * @param syncResult Statistics are accumulated here.
+     */
+    EntryMerger(ContentResolver contentResolver, BatchApplier applier, SyncResult syncResult) {
+        mContentResolver = contentResolver;
+        mApplier = applier;
+        mSyncResult = syncResult;
+
+        Log.i(TAG, "Fetching local entries for merge");
+        Cursor c = contentResolver.query(NewsContract.Entry.CONTENT_URI, KEY_PROJECTION,
+                null, null, null);
+        assert c != null;
+        mLocalMap = new HashMap<String, LocalEntry>(c.getCount());
+        try {
+            while (c.moveToNext()) {
+                syncResult.stats.numEntries++;
+                mLocalMap.put(c.getString(COLUMN_ENTRY_ID),
+                        new LocalEntry(c.getLong(COLUMN_ID), c.getString(COLUMN_HASH)));
+            }
+        } finally {
+            c.close();
+        }
+        Log.i(TAG, "Found " + mLocalMap.size() + " local entries");
+    }
+
+    /**
+     * Merge one incoming article.
+     *
+     * @param e Article as received from the feed. {@code "deleted": true} marks a tombstone.
+     * @return false if the article was a duplicate of one already merged in this pass.
+     */
+    boolean merge(JSONObject e)
+            throws JSONException, RemoteException, OperationApplicationException {
+        String entryId = e.getString("_id");
+        if (!mSeen.add(entryId)) {
+            // Duplicate article in feed. Keep the first occurrence.
+            return false;
+        }
+
+        LocalEntry match = mLocalMap.get(entryId);
+        if (e.optBoolean("deleted", false)) {
+            if (match != null) {
+                scheduleDelete(match);
+            }
+            return true;
+        }
+
+        ContentValues values = toContentValues(e);
+        String hash = hashValues(values);
+        values.put(NewsContract.Entry.COLUMN_HASH, hash);
+
+        if (match == null) {
+            putRenderedHtml(values);
+            Log.i(TAG, "Scheduling insert: entry_id=" + entryId);
+            mApplier.add(ContentProviderOperation.newInsert(NewsContract.Entry.CONTENT_URI)
+                    .withValues(values));
+            mSyncResult.stats.numInserts++;
+        } else if (hash.equals(match.hash)) {
+            mSyncResult.stats.numSkippedEntries++;
+        } else {
+            Uri existingUri = NewsContract.Entry.buildEntryUri(match.id);
+            ContentValues changed = diffAgainstLocal(existingUri, values);
+            if (changed.containsKey(NewsContract.Entry.COLUMN_CONTENT)) {
+                putRenderedHtml(changed);
+            }
+            Log.i(TAG, "Scheduling update of " + changed.keySet() + ": " + existingUri);
+            mApplier.add(ContentProviderOperation.newUpdate(existingUri)
+                    .withValues(changed));
+            mSyncResult.stats.numUpdates++;
+        }
+        return true;
+    }
+
+    /**
+     * Complete the merge.
+     *
+     * @param fullSync True if the merged articles were a complete snapshot, in which case local
+     *                 entries that were not seen are scheduled for deletion. An incremental feed
+     *                 only carries changes, so absence means "unchanged" there.
+     */
+    void finish(boolean fullSync) throws RemoteException, OperationApplicationException {
+        if (!fullSync) {
+            return;
+        }
+        for (Map.Entry<String, LocalEntry> local : mLocalMap.entrySet()) {
+            if (!mSeen.contains(local.getKey())) {
+                // Entry doesn't exist in the snapshot. Remove it from the database.
+                scheduleDelete(local.getValue());
+            }
+        }
+    }
+
+    private void scheduleDelete(LocalEntry entry)
+            throws RemoteException, OperationApplicationException {
+        Uri deleteUri = NewsContract.Entry.buildEntryUri(entry.id);
+        Log.i(TAG, "Scheduling delete: " + deleteUri);
+        mApplier.add(ContentProviderOperation.newDelete(deleteUri));
+        mSyncResult.stats.numDeletes++;
+    }
+
+    /**
+     * Read the stored columns of one local row and return only the incoming values which differ,
+     * plus the new hash if anything did.
+     */
+    private ContentValues diffAgainstLocal(Uri existingUri, ContentValues incoming) {
+        ContentValues changed = new ContentValues();
+        Cursor c = mContentResolver.query(existingUri, MERGED_COLUMNS, null, null, null);
+        try {
+            if (c == null || !c.moveToFirst()) {
+                // Row vanished underneath us; rewrite everything.
+                changed.putAll(incoming);
+                return changed;
+            }
+            for (int i = 0; i < MERGED_COLUMNS.length; i++) {
+                String column = MERGED_COLUMNS[i];
+                if (!TextUtils.equals(c.getString(i), incoming.getAsString(column))) {
+                    changed.put(column, incoming.getAsString(column));
+                }
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        // Always store the new hash, e.g. for rows written before hashes existed.
+        changed.put(NewsContract.Entry.COLUMN_HASH,
+                incoming.getAsString(NewsContract.Entry.COLUMN_HASH));
+        return changed;
+    }
+
+    /**
+     * Render the content in a set of values to HTML and add it to them.
+     */
+    private void putRenderedHtml(ContentValues values) {
+        String content = values.getAsString(NewsContract.Entry.COLUMN_CONTENT);
+        values.put(NewsContract.Entry.COLUMN_HTML,
+                content != null ? mRenderer.markdownToHtml(content) : null);
+    }
+
+    /**
+     * Map an incoming article onto entry table columns.
+     */
+    static ContentValues toContentValues(JSONObject e) throws JSONException {
+        ContentValues values = new ContentValues();
+        values.put(NewsContract.Entry.COLUMN_ENTRY_ID, e.getString("_id"));
+        values.put(NewsContract.Entry.COLUMN_TITLE, e.getString("title"));
+        values.put(NewsContract.Entry.COLUMN_CONTENT, e.getString("content"));
+        values.put(NewsContract.Entry.COLUMN_PUBLISHER, e.has("publisher") ? e.getString("publisher") : null);
+        values.put(NewsContract.Entry.COLUMN_PICURL, e.has("pic_link") ? e.getString("pic_link") : null);
+        values.put(NewsContract.Entry.COLUMN_ORIGINALURL, e.getString("origin_link"));
+        values.put(NewsContract.Entry.COLUMN_CREATEDAT, e.has("created_at") ? JSONParser.parseTimestamp(e.getString("created_at")) : null);
+        values.put(NewsContract.Entry.COLUMN_UPDATEDAT, e.has("updated_at") ? JSONParser.parseTimestamp(e.getString("updated_at")) : null);
+        values.put(NewsContract.Entry.COLUMN_PUBLISHEDAT, e.has("publish_at") ? JSONParser.parseTimestamp(e.getString("publish_at")) : null);
+        return values;
+    }
+
+    /**
+     * Hash the synced columns of a row. Nulls and empty strings hash differently.
+     */
+    static String hashValues(ContentValues values) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            for (String column : MERGED_COLUMNS) {
+                String value = values.getAsString(column);
+                if (value == null) {
+                    digest.update((byte) 0);
+                } else {
+                    digest.update((byte) 1);
+                    digest.update(value.getBytes("UTF-8"));
+                }
+                digest.update((byte) 0x1f);
+            }
+            return bytesToHexString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(values.hashCode());
+        } catch (UnsupportedEncodingException e) {
+            return String.valueOf(values.hashCode());
+        }
+    }
+
+    private static String bytesToHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (int i = 0; i < bytes.length; i++) {
+            String hex = Integer.toHexString(0xFF & bytes[i]);
+            if (hex.length() == 1) {
+                sb.append('0');
+            }
+            sb.append(hex);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Local row state needed to merge an incoming article.
+     */
+    private static class LocalEntry {
+        final long id;
+        final String hash;
+
+        LocalEntry(long id, String hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+    }
+}
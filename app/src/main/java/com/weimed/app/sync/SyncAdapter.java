@@ -20,22 +20,21 @@ import android.accounts.Account;
 import android.annotation.TargetApi;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.content.SyncResult;
-import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.RemoteException;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 import com.weimed.app.provider.NewsContract;
 import com.weimed.app.utils.JSONParser;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -47,8 +46,6 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.text.ParseException;
-import java.util.ArrayList;
-import java.util.HashMap;
 
 import com.google.common.io.CharStreams;
 
@@ -71,6 +68,17 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
     private static final String NEWS_URL_BASE = "http://192.168.1.70:3003/articles";
     private static final String NEWS_URL = NEWS_URL_BASE;
 
+    /**
+     * Query parameter carrying the high-water mark of the last successful sync. The server only
+     * returns articles changed after it, including tombstones for deleted ones.
+     */
+    private static final String PARAM_SINCE = "since";
+
+    /**
+     * Preference key for the persisted high-water mark. Absent until the first successful sync.
+     */
+    private static final String PREF_SYNC_CURSOR = "sync_cursor";
+
     /**
      * Network connection timeout, in milliseconds.
      */
@@ -86,34 +94,6 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
      */
     private final ContentResolver mContentResolver;
 
-    /**
-     * Project used when querying content provider. Returns all known fields.
-     */
-    private static final String[] PROJECTION = new String[] {
-            NewsContract.Entry._ID,
-            NewsContract.Entry.COLUMN_ENTRY_ID,
-            NewsContract.Entry.COLUMN_TITLE,
-            NewsContract.Entry.COLUMN_CONTENT,
-            NewsContract.Entry.COLUMN_PUBLISHER,
-            NewsContract.Entry.COLUMN_PICURL,
-            NewsContract.Entry.COLUMN_ORIGINALURL,
-            NewsContract.Entry.COLUMN_CREATEDAT,
-            NewsContract.Entry.COLUMN_UPDATEDAT,
-            NewsContract.Entry.COLUMN_PUBLISHEDAT
-    };
-
-    // Constants representing column positions from PROJECTION.
-    public static final int COLUMN_ID = 0;
-    public static final int COLUMN_ENTRY_ID = 1;
-    public static final int COLUMN_TITLE = 2;
-    public static final int COLUMN_CONTENT = 3;
-    public static final int COLUMN_PUBLISHER = 4;
-    public static final int COLUMN_PICURL = 5;
-    public static final int COLUMN_ORIGINALURL = 6;
-    public static final int COLUMN_CREATEDAT = 7;
-    public static final int COLUMN_UPDATEDAT = 8;
-    public static final int COLUMN_PUBLISHEDAT = 9;
-
     /**
      * Constructor. Obtains handle to content resolver for later use.
      */
@@ -151,13 +131,20 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
                               ContentProviderClient provider, SyncResult syncResult) {
         Log.i(TAG, "Beginning network synchronization");
         try {
-            final URL location = new URL(NEWS_URL);
+            final String since = extras.getBoolean(SyncUtils.SYNC_EXTRAS_FULL, false)
+                    ? null : getSyncCursor();
+            final URL location = new URL(buildFeedUrl(since));
             InputStream stream = null;
 
             try {
                 Log.i(TAG, "Streaming data from network: " + location);
                 stream = downloadUrl(location);
-                updateLocalJSONData(stream, syncResult);
+                final int chunkSize = extras.getInt(SyncUtils.SYNC_EXTRAS_CHUNK_SIZE,
+                        BatchApplier.DEFAULT_CHUNK_SIZE);
+                String cursor = updateLocalJSONData(stream, since == null, chunkSize, syncResult);
+                if (cursor != null) {
+                    setSyncCursor(cursor);
+                }
                 // Makes sure that the InputStream is closed after the app is
                 // finished using it.
             } finally {
@@ -189,6 +176,10 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
             Log.e(TAG, "Error updating database: " + e.toString());
             syncResult.databaseError = true;
             return;
+        } catch (SQLiteException e) {
+            Log.e(TAG, "Error updating database: " + e.toString());
+            syncResult.databaseError = true;
+            return;
         }
         Log.i(TAG, "Network synchronization complete");
     }
@@ -199,140 +190,106 @@ class SyncAdapter extends AbstractThreadedSyncAdapter {
      * <p>This is where incoming data is persisted, committing the results of a sync. In order to
      * minimize (expensive) disk operations, we compare incoming data with what's already in our
      * database, and compute a merge. Only changes (insert/update/delete) will result in a database
-     * write.
+     * write; see {@link EntryMerger}.
      *
-     * <p>As an additional optimization, we use a batch operation to perform all database writes at
-     * once.
+     * <p>As an additional optimization, database writes are applied as batch operations, in chunks
+     * of {@code chunkSize} operations (see {@link BatchApplier}). This keeps memory flat for large
+     * feeds and avoids holding one long transaction for the entire sync.
      *
      * <p>Merge strategy:
-     * 1. Get cursor to all items in feed<br/>
-     * 2. For each item, check if it's in the incoming data.<br/>
-     *    a. YES: Remove from "incoming" list. Check if data has mutated, if so, perform
-     *            database UPDATE.<br/>
-     *    b. NO: Schedule DELETE from database.<br/>
-     * (At this point, incoming database only contains missing items.)<br/>
-     * 3. For any items remaining in incoming list, ADD to database.
+     * 1. Build a map of local entry_id to (_ID, hash); bodies are not read<br/>
+     * 2. For each incoming article, keyed on entry_id:<br/>
+     *    a. Tombstone ("deleted": true): schedule DELETE if present locally.<br/>
+     *    b. Present locally with the same hash: no action.<br/>
+     *    c. Present locally with a different hash: UPDATE the changed columns.<br/>
+     *    d. Otherwise: schedule INSERT.<br/>
+     * 3. Full sync only: any local entry not seen in the feed is scheduled for DELETE. An
+     *    incremental feed only carries changes, so absence means "unchanged" there.
+     *
+     * @param stream Feed, as a stream.
+     * @param fullSync True if the feed is a complete snapshot rather than a delta.
+     * @param chunkSize Maximum number of operations applied per batch.
+     * @param syncResult Sync statistics.
+     * @return The new high-water mark to request from on the next sync, or null if unknown.
      */
-    public void updateLocalJSONData(final InputStream stream, final SyncResult syncResult)
+    public String updateLocalJSONData(final InputStream stream, final boolean fullSync,
+                                      final int chunkSize, final SyncResult syncResult)
             throws IOException, JSONException, RemoteException,
             OperationApplicationException, ParseException {
-        final JSONParser JSONParser = new JSONParser();
-        final ContentResolver contentResolver = getContext().getContentResolver();
-
-        Log.i(TAG, "Parsing stream as JSON Array");
-        final JSONObject json = JSONParser.parseJSONObject(stream);
-        Log.i(TAG, "Parsing complete. Found entries: " + json.getJSONArray("articles").length());
-
+        final JSONParser parser = new JSONParser();
+        final BatchApplier applier =
+                new BatchApplier(mContentResolver, NewsContract.CONTENT_AUTHORITY, chunkSize);
+        final EntryMerger merger =
+                new EntryMerger(getContext().getContentResolver(), applier, syncResult);
 
-        ArrayList<ContentProviderOperation> batch = new ArrayList<ContentProviderOperation>();
-
-        // Build hash table of incoming entries
-        HashMap<String, JSONObject> entryMap = new HashMap<String, JSONObject>();
-        final JSONArray entries = json.getJSONArray("articles");
-        for (int i = 0; i < entries.length(); i++) {
-            JSONObject e = entries.getJSONObject(i);
-            entryMap.put(e.getString("_id"), e);
+        String highWaterMark = null;
+        long highWaterMarkTime = Long.MIN_VALUE;
+        // Opened before the batch starts: if the feed can't be read, there is no batch to end.
+        JSONParser.ItemReader reader = parser.openItemReader(stream, "articles");
+        try {
+            // Hold back change notifications while the chunks are applied, so that observers such
+            // as the list loader are notified once at the end instead of after every chunk.
+            mContentResolver.call(NewsContract.Entry.CONTENT_URI,
+                    NewsContract.METHOD_BEGIN_BATCH, null, null);
+            try {
+                // Articles are pulled from the stream one at a time, so only the current article
+                // is ever materialized; the whole feed is never held in memory.
+                Log.i(TAG, "Streaming articles from JSON feed ("
+                        + (fullSync ? "full" : "incremental") + ")");
+                while (reader.hasNext()) {
+                    JSONObject e = reader.next();
+                    if (!merger.merge(e)) {
+                        continue;
+                    }
+                    // Compared as instants: the strings may differ in offset or precision.
+                    String updatedat = e.has("updated_at") ? e.getString("updated_at") : null;
+                    Long updatedTime = JSONParser.parseTimestamp(updatedat);
+                    if (updatedTime != null && updatedTime > highWaterMarkTime) {
+                        highWaterMark = updatedat;
+                        highWaterMarkTime = updatedTime;
+                    }
+                }
+                Log.i(TAG, "Parsing complete. Found entries: " + reader.getCount());
+                merger.finish(fullSync);
+                applier.flush();
+                applier.logSummary();
+            } finally {
+                // Observers are only notified if a chunk was actually applied. The provider never
+                // sends a sync-to-network notification, so this cannot trigger another sync.
+                mContentResolver.call(NewsContract.Entry.CONTENT_URI,
+                        NewsContract.METHOD_END_BATCH, null, null);
+            }
+        } finally {
+            reader.close();
         }
 
-        // Get list of all items
-        Log.i(TAG, "Fetching local entries for merge");
-        Uri uri = NewsContract.Entry.CONTENT_URI; // Get all entries
-        Cursor c = contentResolver.query(uri, PROJECTION, null, null, null);
-        assert c != null;
-        Log.i(TAG, "Found " + c.getCount() + " local entries. Computing merge solution...");
-
-        // Find stale data
-        int id;
-        String entryId;
-        String title;
-        String content;
-        String publisher;
-        String picurl;
-        String originalurl;
-        String createdat;
-        String updatedat;
-        String publishedat;
+        // Prefer an opaque cursor from the server; fall back to the newest updated_at we saw.
+        String cursor = reader.getField("cursor");
+        return cursor != null ? cursor : highWaterMark;
+    }
 
-        while (c.moveToNext()) {
-            syncResult.stats.numEntries++;
-            id = c.getInt(COLUMN_ID);
-            entryId = c.getString(COLUMN_ENTRY_ID);
-            title = c.getString(COLUMN_TITLE);
-            content = c.getString(COLUMN_CONTENT);
-            publisher = c.getString(COLUMN_PUBLISHER);
-            picurl = c.getString(COLUMN_PICURL);
-            originalurl = c.getString(COLUMN_ORIGINALURL);
-            createdat = c.getString(COLUMN_CREATEDAT);
-            updatedat = c.getString(COLUMN_UPDATEDAT);
-            publishedat = c.getString(COLUMN_PUBLISHEDAT);
-            JSONObject match = entryMap.get(entryId);
-//            if (match != null) {
-                // Entry exists. Remove from entry map to prevent insert later.
-//                entryMap.remove(entryId);
-                // Check to see if the entry needs to be updated
-                // How to know update local or remote? updatedAt! which is newer, update another.
-//                Uri existingUri = NewsContract.Entry.CONTENT_URI.buildUpon()
-//                                              .appendPath(Integer.toString(id)).build();
-//                if ((match.getString("title") != null && !match.getString("title").equals(title)) ||
-//                    (match.getString("content") != null && !match.getString("content").equals(content)) ||
-//                    (match.getString("publisher") != null && !match.getString("publisher").equals(publisher)) ||
-//                    (match.getString("picurl") != null && !match.getString("picurl").equals(picurl)) ||
-//                    (match.getString("originalurl") != null && !match.getString("originalurl").equals(originalurl)) ||
-//                    (match.getString("createdat") != null && !match.getString("createdat").equals(createdat)) ||
-//                    (match.getString("updatedat") != null && !match.getString("updatedat").equals(updatedat)) ||
-//                    (match.getString("publishedat") != null && !match.getString("publishedat").equals(publishedat))
-//                   ) {
-//                    // Update existing record
-//                    Log.i(TAG, "Scheduling update: " + existingUri);
-//                    batch.add(ContentProviderOperation.newUpdate(existingUri)
-//                         .withValue(NewsContract.Entry.COLUMN_TITLE, title)
-//                         .withValue(NewsContract.Entry.COLUMN_CONTENT, content)
-//                         .withValue(NewsContract.Entry.COLUMN_PUBLISHER, publisher)
-//                         .withValue(NewsContract.Entry.COLUMN_PICURL, picurl)
-//                         .withValue(NewsContract.Entry.COLUMN_ORIGINALURL, originalurl)
-//                         .withValue(NewsContract.Entry.COLUMN_CREATEDAT, createdat)
-//                         .withValue(NewsContract.Entry.COLUMN_UPDATEDAT, updatedat)
-//                         .withValue(NewsContract.Entry.COLUMN_PUBLISHEDAT, publishedat)
-//                         .build());
-//                    syncResult.stats.numUpdates++;
-//                } else {
-//                    Log.i(TAG, "No action: " + existingUri);
-//                }
-//            } else {
-                // Entry doesn't exist. Remove it from the database.
-                Uri deleteUri = NewsContract.Entry.CONTENT_URI.buildUpon()
-                                            .appendPath(Integer.toString(id)).build();
-                Log.i(TAG, "Scheduling delete: " + deleteUri);
-                batch.add(ContentProviderOperation.newDelete(deleteUri).build());
-                syncResult.stats.numDeletes++;
-//            }
+    /**
+     * Build the feed URL, asking only for changes since the given high-water mark.
+     *
+     * @param since High-water mark from the last successful sync, or null for a full snapshot.
+     */
+    private static String buildFeedUrl(String since) {
+        if (since == null) {
+            return NEWS_URL;
         }
-        c.close();
+        return Uri.parse(NEWS_URL).buildUpon()
+                .appendQueryParameter(PARAM_SINCE, since)
+                .build().toString();
+    }
 
-        // Add new items
-        for (JSONObject e : entryMap.values()) {
-            Log.i(TAG, "Scheduling insert: entry_id=" + e.getString("_id"));
-            batch.add(ContentProviderOperation.newInsert(NewsContract.Entry.CONTENT_URI)
-                    .withValue(NewsContract.Entry.COLUMN_ENTRY_ID, e.getString("_id"))
-                    .withValue(NewsContract.Entry.COLUMN_TITLE, e.getString("title"))
-                    .withValue(NewsContract.Entry.COLUMN_CONTENT, e.getString("content"))
-                    .withValue(NewsContract.Entry.COLUMN_PUBLISHER, e.has("publisher") ? e.getString("publisher") : null)
-                    .withValue(NewsContract.Entry.COLUMN_PICURL, e.has("pic_link") ? e.getString("pic_link") : null)
-                    .withValue(NewsContract.Entry.COLUMN_ORIGINALURL, e.getString("origin_link"))
-//                    .withValue(NewsContract.Entry.COLUMN_CREATEDAT, e.getString("created_at"))
-//                    .withValue(NewsContract.Entry.COLUMN_UPDATEDAT, e.getString("updated_at"))
-                    .withValue(NewsContract.Entry.COLUMN_PUBLISHEDAT, e.has("publish_at") ? e.getString("publish_at") : null)
-                    .build());
-            syncResult.stats.numInserts++;
-        }
-        Log.i(TAG, "Merge solution ready. Applying batch update");
-        mContentResolver.applyBatch(NewsContract.CONTENT_AUTHORITY, batch);
-        mContentResolver.notifyChange(
-                NewsContract.Entry.CONTENT_URI, // URI where data was modified
-                null,                           // No local observer
-                false);                          // IMPORTANT: Do not sync to network
-        // This sample doesn't support uploads, but if *your* code does, make sure you set
-        // syncToNetwork=false in the line above to prevent duplicate syncs.
+    private String getSyncCursor() {
+        return PreferenceManager.getDefaultSharedPreferences(getContext())
+                .getString(PREF_SYNC_CURSOR, null);
+    }
+
+    private void setSyncCursor(String cursor) {
+        PreferenceManager.getDefaultSharedPreferences(getContext()).edit()
+                .putString(PREF_SYNC_CURSOR, cursor).commit();
     }
 
     /**
@@ -37,6 +37,15 @@ public class SyncUtils {
     private static final String PREF_SETUP_COMPLETE = "setup_complete";
     // Value below must match the account type specified in res/xml/syncadapter.xml
     public static final String ACCOUNT_TYPE = "com.weimed.app.newblaze.account";
+    /**
+     * Sync extra forcing a full snapshot download instead of an incremental one. A full sync also
+     * removes local entries the server no longer has.
+     */
+    public static final String SYNC_EXTRAS_FULL = "full_sync";
+    /**
+     * Optional sync extra overriding the number of database operations applied per batch.
+     */
+    public static final String SYNC_EXTRAS_CHUNK_SIZE = "chunk_size";
 
     /**
      * Create an entry for this application in the system account list, if it isn't already there.
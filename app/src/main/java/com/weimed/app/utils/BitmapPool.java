@@ -0,0 +1,262 @@
+package com.weimed.app.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build.VERSION_CODES;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Bitmaps no longer cached for display, kept to be decoded into with
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}.
+ *
+ * Bitmaps are strongly referenced, up to a budget in bytes; the least recently pooled ones are
+ * dropped first. They are bucketed so a candidate is found without scanning the pool: from
+ * Android 4.4 (KitKat) onward by config and allocation size, taking the smallest allocation that
+ * is large enough; before that by config and exact dimensions, as only those could be reused.
+ *
+ * This class is thread safe.
+ */
+public class BitmapPool {
+    // A reused allocation may be at most this many times the size needed, so small images don't
+    // pin large allocations.
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private int mMaxSize;
+    private int mSize;
+
+    // Buckets by config, then by size key (see getKey()), each holding interchangeable bitmaps.
+    private final HashMap<Config, TreeMap<Long, ArrayDeque<Bitmap>>> mBuckets =
+            new HashMap<Config, TreeMap<Long, ArrayDeque<Bitmap>>>();
+
+    // Every pooled bitmap and its size key, least recently pooled first.
+    private final LinkedHashMap<Bitmap, Long> mLru = new LinkedHashMap<Bitmap, Long>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize The budget of the pool, in bytes
+     */
+    public BitmapPool(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Offer a bitmap for reuse. It must not be drawn any more; it will be decoded over.
+     *
+     * @param bitmap The bitmap
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null || mLru.containsKey(bitmap)) {
+            return;
+        }
+        final int size = getAllocationSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        final Long key = getKey(bitmap);
+        final TreeMap<Long, ArrayDeque<Bitmap>> buckets = getBuckets(bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            buckets.put(key, bucket);
+        }
+        bucket.addLast(bitmap);
+        mLru.put(bitmap, key);
+        mSize += size;
+
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Take a bitmap to decode into.
+     *
+     * @param options Options that have the out* values and inSampleSize populated
+     * @return A bitmap that can be used for inBitmap, removed from the pool, or null
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        final Config config =
+                options.inPreferredConfig != null ? options.inPreferredConfig : Config.ARGB_8888;
+        final TreeMap<Long, ArrayDeque<Bitmap>> buckets = mBuckets.get(config);
+        Long key = null;
+
+        if (buckets != null) {
+            final int sampleSize = Math.max(1, options.inSampleSize);
+            if (Utils.hasKitKat()) {
+                final long needed = (long) (options.outWidth / sampleSize)
+                        * (options.outHeight / sampleSize) * getBytesPerPixel(config);
+                key = buckets.ceilingKey(needed);
+                if (key != null && key > needed * MAX_SIZE_MULTIPLE) {
+                    key = null;
+                }
+            } else if (sampleSize == 1) {
+                // Before KitKat, the dimensions must match exactly and the inSampleSize must be 1
+                key = getDimensionsKey(options.outWidth, options.outHeight);
+            }
+        }
+
+        final ArrayDeque<Bitmap> bucket = key != null ? buckets.get(key) : null;
+        if (bucket == null) {
+            mMissCount++;
+            return null;
+        }
+
+        final Bitmap bitmap = bucket.removeFirst();
+        if (bucket.isEmpty()) {
+            buckets.remove(key);
+        }
+        mLru.remove(bitmap);
+        mSize -= getAllocationSize(bitmap);
+        mHitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Take a bitmap back out of the pool, e.g. because it turned out to be still in use.
+     *
+     * @param bitmap The bitmap
+     */
+    public synchronized void remove(Bitmap bitmap) {
+        final Long key = mLru.remove(bitmap);
+        if (key == null) {
+            return;
+        }
+        final TreeMap<Long, ArrayDeque<Bitmap>> buckets = mBuckets.get(bitmap.getConfig());
+        final ArrayDeque<Bitmap> bucket = buckets.get(key);
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            buckets.remove(key);
+        }
+        mSize -= getAllocationSize(bitmap);
+    }
+
+    /**
+     * Change the budget of the pool, dropping the least recently pooled bitmaps if it is now
+     * over it.
+     *
+     * @param maxSize The budget of the pool, in bytes
+     */
+    public synchronized void resize(int maxSize) {
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Drop the least recently pooled bitmaps until the pool is no larger than a size.
+     *
+     * @param maxSize The size to trim to, in bytes
+     */
+    public synchronized void trimToSize(int maxSize) {
+        final Iterator<Map.Entry<Bitmap, Long>> iterator = mLru.entrySet().iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<Bitmap, Long> eldest = iterator.next();
+            final Bitmap bitmap = eldest.getKey();
+            final TreeMap<Long, ArrayDeque<Bitmap>> buckets = mBuckets.get(bitmap.getConfig());
+            final ArrayDeque<Bitmap> bucket = buckets.get(eldest.getValue());
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                buckets.remove(eldest.getValue());
+            }
+            iterator.remove();
+            // Not recycled: the pool doesn't know whether it is still referenced elsewhere.
+            mSize -= getAllocationSize(bitmap);
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Drop all pooled bitmaps.
+     */
+    public void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * @return The size of the pooled bitmaps, in bytes
+     */
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "BitmapPool[size=" + mSize + ",maxSize=" + mMaxSize + ",bitmaps=" + mLru.size()
+                + ",hits=" + mHitCount + ",misses=" + mMissCount + ",hitRate=" + hitPercent
+                + "%,evictions=" + mEvictionCount + "]";
+    }
+
+    private TreeMap<Long, ArrayDeque<Bitmap>> getBuckets(Config config) {
+        TreeMap<Long, ArrayDeque<Bitmap>> buckets = mBuckets.get(config);
+        if (buckets == null) {
+            buckets = new TreeMap<Long, ArrayDeque<Bitmap>>();
+            mBuckets.put(config, buckets);
+        }
+        return buckets;
+    }
+
+    /**
+     * @return The bucket key of a bitmap: its allocation size from KitKat onward, its dimensions
+     *         before that
+     */
+    private static Long getKey(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return (long) getAllocationSize(bitmap);
+        }
+        return getDimensionsKey(bitmap.getWidth(), bitmap.getHeight());
+    }
+
+    private static Long getDimensionsKey(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+
+    @TargetApi(VERSION_CODES.KITKAT)
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Return the byte usage per pixel of a bitmap based on its configuration.
+     * @param config The bitmap configuration.
+     * @return The byte usage per pixel.
+     */
+    private static int getBytesPerPixel(Config config) {
+        if (config == Config.ARGB_8888) {
+            return 4;
+        } else if (config == Config.RGB_565) {
+            return 2;
+        } else if (config == Config.ARGB_4444) {
+            return 2;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        }
+        return 1;
+    }
+}
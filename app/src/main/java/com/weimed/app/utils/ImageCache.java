@@ -17,6 +17,7 @@
 package com.weimed.app.utils;
 
 import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
@@ -27,26 +28,25 @@ import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
-import android.support.v4.util.LruCache;
 
 import android.util.Log;
 import com.weimed.app.newsblaze.BuildConfig;
 
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
@@ -61,26 +61,60 @@ public class ImageCache {
     // Default memory cache size in kilobytes
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 5; // 5MB
 
+    // Default bitmap pool size in kilobytes
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 4; // 4MB
+
     // Default disk cache size in bytes
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
     // Compression settings when writing images to disk cache
-    private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
+    private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.WEBP;
     private static final int DEFAULT_COMPRESS_QUALITY = 70;
     private static final int DISK_CACHE_INDEX = 0;
 
+    // Bumped when the format of disk cache entries changes, discarding the old ones
+    private static final int DISK_CACHE_VERSION = 2;
+
+    // Bitmaps up to this many bytes, e.g. list thumbnails, are stored as raw pixels instead of
+    // being compressed, so reading them back needs no decoding
+    private static final int MAX_RAW_BITMAP_SIZE = 256 * 1024; // 256KB
+
+    // Raw entries start with this, then width, height, config ordinal and whether the bitmap has
+    // alpha, followed by the pixels. Compressed formats start with their own signatures.
+    private static final int RAW_BITMAP_MAGIC = 0x52415742; // "RAWB"
+    private static final int RAW_HEADER_SIZE = 5 * 4;
+
+    // Memory cache and bitmap pool sizes are scaled in steps of a quarter of their configured
+    // size: down on memory pressure, and back up one step at a time once it has passed
+    private static final int MEMORY_SIZE_STEPS = 4;
+    private static final long MEMORY_GROW_INTERVAL = 30 * 1000; // 30 seconds
+
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
 
     private DiskLruCache mDiskLruCache;
-    private LruCache<String, BitmapDrawable> mMemoryCache;
+    private StripedLruCache<String, BitmapDrawable> mMemoryCache;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
-    private boolean mDiskCacheStarting = true;
+    // Held while opening the disk cache, which is done without mDiskCacheLock
+    private final Object mDiskCacheInitLock = new Object();
+    private volatile boolean mDiskCacheStarting = true;
+
+    private BitmapPool mBitmapPool;
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    // Bitmaps handed to holders that never say when they are done with them, e.g. article text.
+    // They stay out of the bitmap pool, as decoding into one would change what is on screen.
+    private final Set<Bitmap> mRetainedBitmaps =
+            Collections.synchronizedSet(Collections.newSetFromMap(
+                    new WeakHashMap<Bitmap, Boolean>()));
+
+    // Steps of the configured memory cache and bitmap pool sizes in use; written with
+    // mMemorySizeLock held
+    private final Object mMemorySizeLock = new Object();
+    private volatile int mMemorySizeSteps = MEMORY_SIZE_STEPS;
+    private long mLastMemoryResize;
 
     /**
      * Create a new ImageCache object using the specified parameters. This should not be
@@ -150,21 +184,16 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
+            // If we're running on Honeycomb or newer, create a pool of reusable bitmaps that can
+            // be populated into the inBitmap field of BitmapFactory.Options. Its bitmaps are
+            // strongly referenced, so it has its own budget on top of the memory cache's.
             if (Utils.hasHoneycomb()) {
-                mReusableBitmaps =
-                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+                mBitmapPool = new BitmapPool(mCacheParams.bitmapPoolSize * 1024);
             }
 
-            mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
+            // The memory cache is segmented so UI thread hits don't queue behind worker threads
+            // adding bitmaps, and admits new bitmaps by how often they are asked for.
+            mMemoryCache = new StripedLruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
 
                 /**
                  * Notify the removed entry that is no longer being cached
@@ -179,14 +208,25 @@ public class ImageCache {
                     } else {
                         // The removed entry is a standard BitmapDrawable
 
-                        if (Utils.hasHoneycomb()) {
+                        if (Utils.hasHoneycomb()
+                                && !mRetainedBitmaps.contains(oldValue.getBitmap())) {
                             // We're running on Honeycomb or later, so add the bitmap
-                            // to a SoftReference set for possible use with inBitmap later
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
+                            // to the pool for possible use with inBitmap later
+                            mBitmapPool.put(oldValue.getBitmap());
                         }
                     }
                 }
 
+                /**
+                 * The bitmap was not cached, so it can't be recycled by the cache either
+                 */
+                @Override
+                protected void entryRejected(String key, BitmapDrawable value) {
+                    if (RecyclingBitmapDrawable.class.isInstance(value)) {
+                        ((RecyclingBitmapDrawable) value).setIsCached(false);
+                    }
+                }
+
                 /**
                  * Measure item size in kilobytes rather than units which is more practical
                  * for a bitmap cache
@@ -216,29 +256,43 @@ public class ImageCache {
      */
     public void initDiskCache() {
         // Set up disk cache
-        synchronized (mDiskCacheLock) {
-            if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
-                File diskCacheDir = mCacheParams.diskCacheDir;
-                if (mCacheParams.diskCacheEnabled && diskCacheDir != null) {
-                    if (!diskCacheDir.exists()) {
-                        diskCacheDir.mkdirs();
-                    }
-                    if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
-                        try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
-                            if (BuildConfig.DEBUG) {
-                                Log.d(TAG, "Disk cache initialized");
-                            }
-                        } catch (final IOException e) {
-                            mCacheParams.diskCacheDir = null;
-                            Log.e(TAG, "initDiskCache - " + e);
+        synchronized (mDiskCacheInitLock) {
+            synchronized (mDiskCacheLock) {
+                if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                    mDiskCacheStarting = false;
+                    return;
+                }
+            }
+
+            // Opening reads and replays the whole journal, so mDiskCacheLock isn't held
+            // meanwhile: lookups miss and additions skip the disk instead of waiting for it.
+            DiskLruCache diskLruCache = null;
+            File diskCacheDir = mCacheParams.diskCacheDir;
+            if (mCacheParams.diskCacheEnabled && diskCacheDir != null) {
+                if (!diskCacheDir.exists()) {
+                    diskCacheDir.mkdirs();
+                }
+                if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
+                    try {
+                        final long start = SystemClock.elapsedRealtime();
+                        diskLruCache = DiskLruCache.open(diskCacheDir,
+                                DISK_CACHE_VERSION, 1, mCacheParams.diskCacheSize);
+                        if (BuildConfig.DEBUG) {
+                            Log.d(TAG, "Disk cache initialized in "
+                                    + (SystemClock.elapsedRealtime() - start) + "ms ("
+                                    + diskLruCache.size() + " bytes)");
                         }
+                    } catch (final IOException e) {
+                        mCacheParams.diskCacheDir = null;
+                        Log.e(TAG, "initDiskCache - " + e);
                     }
                 }
             }
-            mDiskCacheStarting = false;
-            mDiskCacheLock.notifyAll();
+
+            synchronized (mDiskCacheLock) {
+                mDiskLruCache = diskLruCache;
+                mDiskCacheStarting = false;
+            }
         }
     }
 
@@ -255,6 +309,7 @@ public class ImageCache {
 
         // Add to memory cache
         if (mMemoryCache != null) {
+            growMemoryCache();
             if (RecyclingBitmapDrawable.class.isInstance(value)) {
                 // The removed entry is a recycling drawable, so notify it
                 // that it has been added into the memory cache
@@ -277,6 +332,7 @@ public class ImageCache {
 
         // Add to memory cache
         if (mMemoryCache != null) {
+            growMemoryCache();
             if (RecyclingBitmapDrawable.class.isInstance(value)) {
                 // The removed entry is a recycling drawable, so notify it
                 // that it has been added into the memory cache
@@ -296,8 +352,7 @@ public class ImageCache {
                         final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
                         if (editor != null) {
                             out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
+                            writeBitmap(value.getBitmap(), out);
                             editor.commit();
                             out.close();
                         }
@@ -320,6 +375,22 @@ public class ImageCache {
         //END_INCLUDE(add_bitmap_to_cache)
     }
 
+    /**
+     * Keep a bitmap out of the bitmap pool once it leaves the memory cache, because it is held
+     * somewhere that may still draw it. Call before adding it to the cache.
+     *
+     * @param value The bitmap drawable handed out
+     */
+    public void setRetained(BitmapDrawable value) {
+        if (value != null && value.getBitmap() != null) {
+            mRetainedBitmaps.add(value.getBitmap());
+            if (mBitmapPool != null) {
+                // It may have been evicted into the pool since it was looked up
+                mBitmapPool.remove(value.getBitmap());
+            }
+        }
+    }
+
     /**
      * Get from memory cache.
      *
@@ -346,19 +417,24 @@ public class ImageCache {
      * Get from disk cache.
      *
      * @param data Unique identifier for which item to get
-     * @return The bitmap if found in cache, null otherwise
+     * @return The bitmap if found in cache, null otherwise, including while the disk cache is
+     *         still being opened
      */
     public Bitmap getBitmapFromDiskCache(String data) {
         //BEGIN_INCLUDE(get_bitmap_from_disk_cache)
+        if (mDiskCacheStarting) {
+            // Don't wait for the journal to be replayed; the caller can process the bitmap
+            // meanwhile
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "Disk cache not ready yet");
+            }
+            return null;
+        }
+
         final String key = hashKeyForDisk(data);
         Bitmap bitmap = null;
 
         synchronized (mDiskCacheLock) {
-            while (mDiskCacheStarting) {
-                try {
-                    mDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
-            }
             if (mDiskLruCache != null) {
                 InputStream inputStream = null;
                 try {
@@ -369,12 +445,7 @@ public class ImageCache {
                         }
                         inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
                         if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+                            bitmap = readBitmap((FileInputStream) inputStream);
                         }
                     }
                 } catch (final IOException e) {
@@ -393,40 +464,114 @@ public class ImageCache {
     }
 
     /**
-     * @param options - BitmapFactory.Options with out* options populated
-     * @return Bitmap that case be used for inBitmap
+     * The format to compress a bitmap with. WEBP drops the alpha channel before API 18, so
+     * bitmaps with alpha are written as PNG there instead.
      */
-    protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
-        Bitmap bitmap = null;
+    private CompressFormat getCompressFormat(Bitmap bitmap) {
+        final CompressFormat format = mCacheParams.compressFormat;
+        if (format == CompressFormat.WEBP && bitmap.hasAlpha() && !Utils.hasJellyBeanMR2()) {
+            return CompressFormat.PNG;
+        }
+        return format;
+    }
 
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
+    /**
+     * Write a bitmap for the disk cache: small ones as raw pixels, others compressed.
+     *
+     * @param bitmap The bitmap to write
+     * @param out The stream of the disk cache entry
+     */
+    private void writeBitmap(Bitmap bitmap, OutputStream out) throws IOException {
+        final Config config = bitmap.getConfig();
+        final int size = bitmap.getRowBytes() * bitmap.getHeight();
+        if (config == null || size > MAX_RAW_BITMAP_SIZE) {
+            bitmap.compress(getCompressFormat(bitmap), mCacheParams.compressQuality, out);
+            return;
+        }
 
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
+        final ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_SIZE + size);
+        buffer.putInt(RAW_BITMAP_MAGIC)
+                .putInt(bitmap.getWidth())
+                .putInt(bitmap.getHeight())
+                .putInt(config.ordinal())
+                .putInt(bitmap.hasAlpha() ? 1 : 0);
+        bitmap.copyPixelsToBuffer(buffer);
+        out.write(buffer.array(), 0, buffer.position());
+    }
 
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
+    /**
+     * Read a bitmap written by {@link #writeBitmap(Bitmap, OutputStream)}.
+     *
+     * @param in The stream of the disk cache entry
+     * @return The bitmap, or null if it could not be read
+     */
+    private Bitmap readBitmap(FileInputStream in) throws IOException {
+        final FileChannel channel = in.getChannel();
+        final ByteBuffer header = ByteBuffer.allocate(RAW_HEADER_SIZE);
+        while (header.hasRemaining() && channel.read(header) != -1) {}
+        header.flip();
+
+        if (header.remaining() < RAW_HEADER_SIZE || header.getInt() != RAW_BITMAP_MAGIC) {
+            // Compressed, so rewind and decode bitmap, but we don't want to sample so give
+            // MAX_VALUE as the target dimensions
+            channel.position(0);
+            return ImageResizer.decodeSampledBitmapFromDescriptor(
+                    in.getFD(), Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+        }
+
+        final int width = header.getInt();
+        final int height = header.getInt();
+        final int configOrdinal = header.getInt();
+        final boolean hasAlpha = header.getInt() != 0;
+        final Config[] configs = Config.values();
+        if (width <= 0 || height <= 0 || configOrdinal < 0 || configOrdinal >= configs.length) {
+            return null;
+        }
+
+        final Bitmap bitmap = createBitmap(width, height, configs[configOrdinal]);
+        final ByteBuffer pixels = ByteBuffer.allocate(bitmap.getRowBytes() * height);
+        while (pixels.hasRemaining() && channel.read(pixels) != -1) {}
+        if (pixels.hasRemaining()) {
+            // Truncated entry
+            return null;
+        }
+        pixels.flip();
+        bitmap.copyPixelsFromBuffer(pixels);
+        bitmap.setHasAlpha(hasAlpha);
+        return bitmap;
+    }
 
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
+    /**
+     * Create a mutable bitmap to read raw pixels into, reusing one from the pool if possible.
+     */
+    @TargetApi(VERSION_CODES.KITKAT)
+    private Bitmap createBitmap(int width, int height, Config config) {
+        if (mBitmapPool != null) {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.outWidth = width;
+            options.outHeight = height;
+            options.inPreferredConfig = config;
+            options.inSampleSize = 1;
+            final Bitmap bitmap = mBitmapPool.get(options);
+            if (bitmap != null) {
+                if (Utils.hasKitKat()) {
+                    // The pool only hands out allocations that are large enough
+                    bitmap.reconfigure(width, height, config);
                 }
+                return bitmap;
             }
         }
+        return Bitmap.createBitmap(width, height, config);
+    }
 
-        return bitmap;
-        //END_INCLUDE(get_bitmap_from_reusable_set)
+    /**
+     * @param options - BitmapFactory.Options with out* options populated
+     * @return Bitmap that case be used for inBitmap
+     */
+    protected Bitmap getBitmapFromPool(BitmapFactory.Options options) {
+        //BEGIN_INCLUDE(get_bitmap_from_pool)
+        return mBitmapPool != null ? mBitmapPool.get(options) : null;
+        //END_INCLUDE(get_bitmap_from_pool)
     }
 
     /**
@@ -440,10 +585,14 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache cleared");
             }
         }
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+        }
 
+        boolean reopen = false;
         synchronized (mDiskCacheLock) {
-            mDiskCacheStarting = true;
             if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
+                mDiskCacheStarting = true;
                 try {
                     mDiskLruCache.delete();
                     if (BuildConfig.DEBUG) {
@@ -453,8 +602,110 @@ public class ImageCache {
                     Log.e(TAG, "clearCache - " + e);
                 }
                 mDiskLruCache = null;
-                initDiskCache();
+                reopen = true;
+            }
+        }
+        // Outside mDiskCacheLock, which initDiskCache() takes after mDiskCacheInitLock
+        if (reopen) {
+            initDiskCache();
+        }
+    }
+
+    /**
+     * Release memory according to how hard the system is pressed for it, as reported to
+     * {@link android.content.ComponentCallbacks2#onTrimMemory(int)}. The memory cache and bitmap
+     * pool shrink with the pressure; once they are used again after a while without it, they
+     * grow back step by step, as long as the heap has room.
+     *
+     * @param level The trim level
+     */
+    public void trimMemory(int level) {
+        final int steps = getMemorySizeSteps(level);
+        synchronized (mMemorySizeLock) {
+            if (steps < mMemorySizeSteps) {
+                mMemorySizeSteps = steps;
+                applyMemorySize();
+            }
+            mLastMemoryResize = SystemClock.uptimeMillis();
+        }
+        if (mBitmapPool != null && level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Nothing is decoded while the UI is hidden, so reusable bitmaps only take up room
+            mBitmapPool.clear();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "trimMemory - level " + level + ", " + mMemoryCache + ", " + mBitmapPool);
+        }
+    }
+
+    /**
+     * @return How many size steps of the memory cache and bitmap pool to keep at a trim level
+     */
+    private static int getMemorySizeSteps(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            return 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            // Not running out yet; keep what the user may come back to
+            return MEMORY_SIZE_STEPS;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return 1;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 3;
+        }
+        return MEMORY_SIZE_STEPS;
+    }
+
+    /**
+     * Grow the memory cache and bitmap pool back by one step, if they were shrunk, the last
+     * change is long enough ago and the heap has room for it.
+     */
+    private void growMemoryCache() {
+        if (mMemorySizeSteps >= MEMORY_SIZE_STEPS) {
+            return;
+        }
+        synchronized (mMemorySizeLock) {
+            final long now = SystemClock.uptimeMillis();
+            if (mMemorySizeSteps >= MEMORY_SIZE_STEPS
+                    || now - mLastMemoryResize < MEMORY_GROW_INTERVAL) {
+                return;
+            }
+            mLastMemoryResize = now;
+
+            final Runtime runtime = Runtime.getRuntime();
+            final long available =
+                    runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+            final long step = ((long) mCacheParams.memCacheSize + mCacheParams.bitmapPoolSize)
+                    * 1024 / MEMORY_SIZE_STEPS;
+            if (available < 2 * step) {
+                return;
             }
+            mMemorySizeSteps++;
+            applyMemorySize();
+        }
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "Memory cache grown - " + mMemoryCache);
+        }
+    }
+
+    /**
+     * Resize the memory cache and bitmap pool to the current number of steps. Call with
+     * mMemorySizeLock held.
+     */
+    private void applyMemorySize() {
+        if (mMemoryCache != null) {
+            // At least 1KB, the size of any entry, so the cache keeps working
+            mMemoryCache.resize(Math.max(1,
+                    mCacheParams.memCacheSize * mMemorySizeSteps / MEMORY_SIZE_STEPS));
+        }
+        // After the memory cache, which evicts into the pool
+        if (mBitmapPool != null) {
+            mBitmapPool.resize(
+                    mCacheParams.bitmapPoolSize * 1024 / MEMORY_SIZE_STEPS * mMemorySizeSteps);
         }
     }
 
@@ -463,6 +714,14 @@ public class ImageCache {
      * disk access so this should not be executed on the main/UI thread.
      */
     public void flush() {
+        if (BuildConfig.DEBUG) {
+            if (mMemoryCache != null) {
+                Log.d(TAG, mMemoryCache.toString());
+            }
+            if (mBitmapPool != null) {
+                Log.d(TAG, mBitmapPool.toString());
+            }
+        }
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null) {
                 try {
@@ -504,6 +763,7 @@ public class ImageCache {
      */
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
         public File diskCacheDir;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
@@ -547,50 +807,6 @@ public class ImageCache {
         }
     }
 
-    /**
-     * @param candidate - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     *      <code>targetOptions</code>
-     */
-    @TargetApi(VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        //BEGIN_INCLUDE(can_use_for_inbitmap)
-        if (!Utils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-        //END_INCLUDE(can_use_for_inbitmap)
-    }
-
-    /**
-     * Return the byte usage per pixel of a bitmap based on its configuration.
-     * @param config The bitmap configuration.
-     * @return The byte usage per pixel.
-     */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565) {
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
-    }
-
     /**
      * Get a usable cache directory (external if available, internal otherwise).
      *
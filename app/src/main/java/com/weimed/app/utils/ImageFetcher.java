@@ -21,36 +21,67 @@ import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.SystemClock;
 import android.widget.Toast;
 
 import android.util.Log;
 import com.weimed.app.newsblaze.BuildConfig;
 import com.weimed.app.newsblaze.R;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A simple subclass of {@link ImageResizer} that fetches and resizes images fetched from a URL.
+ *
+ * Downloads are kept in an HTTP disk cache along with their validators (ETag, Last-Modified) and
+ * an expiry time. Expired entries are revalidated with a conditional GET; a 304 response only
+ * renews the expiry, without downloading the body again.
  */
 public class ImageFetcher extends ImageResizer {
     private static final String TAG = "ImageFetcher";
     private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
     private static final String HTTP_CACHE_DIR = "http";
+    // Bump when the layout of HTTP cache entries changes; the old cache is then discarded.
+    private static final int HTTP_CACHE_VERSION = 2;
+    // How long a download is used without revalidating, unless the server says otherwise.
+    private static final long HTTP_CACHE_DEFAULT_TTL = 24 * 60 * 60 * 1000; // 1 day
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
     private DiskLruCache mHttpDiskCache;
     private File mHttpCacheDir;
-    private boolean mHttpDiskCacheStarting = true;
+    private volatile boolean mHttpDiskCacheStarting = true;
     private final Object mHttpDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
+    private static final int METADATA_INDEX = 1;
+    private static final int HTTP_CACHE_VALUE_COUNT = 2;
+    private static final int DOWNLOAD_LOCK_STRIPES = 16;
+    private static final int HTTP_CONNECT_TIMEOUT = 10 * 1000; // 10 seconds
+    private static final int HTTP_READ_TIMEOUT = 20 * 1000; // 20 seconds
+
+    // Downloads into the HTTP cache are serialized per stripe of keys, see getDownloadLock().
+    private final Object[] mDownloadLocks = new Object[DOWNLOAD_LOCK_STRIPES];
+
+    // Keys of expired entries being revalidated in the background.
+    private final Set<String> mRevalidating = Collections.synchronizedSet(new HashSet<String>());
+
+    // Download totals for this process, across all fetchers.
+    private static final AtomicLong sDownloadedBytes = new AtomicLong();
+    private static final AtomicLong sDownloadMillis = new AtomicLong();
+    private static final AtomicInteger sDownloadCount = new AtomicInteger();
 
     /**
      * Initialize providing a target image width and height for the processing images.
@@ -76,6 +107,9 @@ public class ImageFetcher extends ImageResizer {
     }
 
     private void init(Context context) {
+        for (int i = 0; i < mDownloadLocks.length; i++) {
+            mDownloadLocks[i] = new Object();
+        }
         checkConnection(context);
         mHttpCacheDir = ImageCache.getDiskCacheDir(context, HTTP_CACHE_DIR);
     }
@@ -90,25 +124,34 @@ public class ImageFetcher extends ImageResizer {
         if (!mHttpCacheDir.exists()) {
             mHttpCacheDir.mkdirs();
         }
-        synchronized (mHttpDiskCacheLock) {
-            if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
-                try {
-                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
-                    if (BuildConfig.DEBUG) {
-                        Log.d(TAG, "HTTP cache initialized");
-                    }
-                } catch (IOException e) {
-                    mHttpDiskCache = null;
+        // Opening replays the journal, so it is done without mHttpDiskCacheLock; downloads
+        // meanwhile go around the cache. Cache tasks run one at a time, so there is only ever
+        // one thread here.
+        DiskLruCache httpDiskCache = null;
+        if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
+            try {
+                final long start = SystemClock.elapsedRealtime();
+                httpDiskCache = DiskLruCache.open(mHttpCacheDir, HTTP_CACHE_VERSION,
+                        HTTP_CACHE_VALUE_COUNT, HTTP_CACHE_SIZE);
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "HTTP cache initialized in "
+                            + (SystemClock.elapsedRealtime() - start) + "ms ("
+                            + httpDiskCache.size() + " bytes)");
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "initHttpDiskCache - " + e);
             }
+        }
+        synchronized (mHttpDiskCacheLock) {
+            mHttpDiskCache = httpDiskCache;
             mHttpDiskCacheStarting = false;
-            mHttpDiskCacheLock.notifyAll();
         }
     }
 
     @Override
     protected void clearCacheInternal() {
         super.clearCacheInternal();
+        boolean reopen = false;
         synchronized (mHttpDiskCacheLock) {
             if (mHttpDiskCache != null && !mHttpDiskCache.isClosed()) {
                 try {
@@ -121,9 +164,12 @@ public class ImageFetcher extends ImageResizer {
                 }
                 mHttpDiskCache = null;
                 mHttpDiskCacheStarting = true;
-                initHttpDiskCache();
+                reopen = true;
             }
         }
+        if (reopen) {
+            initHttpDiskCache();
+        }
     }
 
     @Override
@@ -183,9 +229,11 @@ public class ImageFetcher extends ImageResizer {
      * thread.
      *
      * @param data The data to load the bitmap, in this case, a regular http URL
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
      * @return The downloaded and resized bitmap
      */
-    private Bitmap processBitmap(String data) {
+    private Bitmap processBitmap(String data, int reqWidth, int reqHeight) {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "processBitmap - " + data);
         }
@@ -194,55 +242,46 @@ public class ImageFetcher extends ImageResizer {
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
         DiskLruCache.Snapshot snapshot;
-        synchronized (mHttpDiskCacheLock) {
-            // Wait for disk cache to initialize
-            while (mHttpDiskCacheStarting) {
-                try {
-                    mHttpDiskCacheLock.wait();
-                } catch (InterruptedException e) {}
-            }
-
-            if (mHttpDiskCache != null) {
-                try {
-                    snapshot = mHttpDiskCache.get(key);
-                    if (snapshot == null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                        }
-                        DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                        if (editor != null) {
-                            if (downloadUrlToStream(data,
-                                    editor.newOutputStream(DISK_CACHE_INDEX))) {
-                                editor.commit();
-                            } else {
-                                editor.abort();
-                            }
-                        }
-                        snapshot = mHttpDiskCache.get(key);
-                    }
-                    if (snapshot != null) {
-                        fileInputStream =
-                                (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                        fileDescriptor = fileInputStream.getFD();
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {}
+        // The cache is thread safe itself; mHttpDiskCacheLock is only held to get hold of it, so
+        // cache hits never wait for a download.
+        final DiskLruCache httpDiskCache = getHttpDiskCache();
+        if (httpDiskCache != null) {
+            try {
+                snapshot = httpDiskCache.get(key);
+                if (snapshot == null) {
+                    synchronized (getDownloadLock(key)) {
+                        snapshot = fetchIntoCache(httpDiskCache, key, data);
                     }
+                } else if (!HttpMetadata.read(snapshot).isFresh()) {
+                    // Show the expired copy now rather than wait for the round trip.
+                    revalidateLater(httpDiskCache, key, data);
+                }
+                if (snapshot != null) {
+                    fileInputStream =
+                            (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
+                    fileDescriptor = fileInputStream.getFD();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "processBitmap - " + e);
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "processBitmap - " + e);
+            } finally {
+                if (fileDescriptor == null && fileInputStream != null) {
+                    try {
+                        fileInputStream.close();
+                    } catch (IOException e) {}
                 }
             }
         }
 
         Bitmap bitmap = null;
         if (fileDescriptor != null) {
-            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth,
-                    mImageHeight, getImageCache());
+            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth,
+                    reqHeight, getImageCache());
+        } else if (httpDiskCache == null) {
+            // No HTTP cache, or it is still being opened: download without it rather than wait.
+            // The processed bitmap is still cached by the ImageCache.
+            bitmap = downloadBitmap(data, reqWidth, reqHeight);
         }
         if (fileInputStream != null) {
             try {
@@ -252,9 +291,129 @@ public class ImageFetcher extends ImageResizer {
         return bitmap;
     }
 
+    /**
+     * Revalidate an expired entry of the HTTP cache in the background, unless that is already
+     * under way.
+     *
+     * @param httpDiskCache The HTTP cache
+     * @param key The cache key of the URL
+     * @param urlString The URL
+     */
+    private void revalidateLater(final DiskLruCache httpDiskCache, final String key,
+            final String urlString) {
+        if (!mRevalidating.add(key)) {
+            return;
+        }
+        AsyncTask.DUAL_THREAD_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    synchronized (getDownloadLock(key)) {
+                        final DiskLruCache.Snapshot snapshot =
+                                fetchIntoCache(httpDiskCache, key, urlString);
+                        if (snapshot != null) {
+                            snapshot.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "revalidateLater - " + e);
+                } catch (IllegalStateException e) {
+                    // The cache was closed meanwhile.
+                    Log.e(TAG, "revalidateLater - " + e);
+                } finally {
+                    mRevalidating.remove(key);
+                }
+            }
+        });
+    }
+
+    /**
+     * Download a URL into the HTTP cache, or revalidate the expired entry there. Call with the
+     * download lock of the key held.
+     *
+     * @param httpDiskCache The HTTP cache
+     * @param key The cache key of the URL
+     * @param urlString The URL
+     * @return A snapshot of the entry, or null if there is none. The entry may still be expired
+     *         if it couldn't be revalidated, e.g. when offline.
+     */
+    private DiskLruCache.Snapshot fetchIntoCache(DiskLruCache httpDiskCache, String key,
+            String urlString) throws IOException {
+        final DiskLruCache.Snapshot snapshot = httpDiskCache.get(key);
+        final HttpMetadata cached = snapshot != null ? HttpMetadata.read(snapshot) : null;
+        if (cached != null && cached.isFresh()) {
+            // Another thread fetched it while we waited for the lock.
+            return snapshot;
+        }
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, snapshot == null
+                    ? "processBitmap, not found in http cache, downloading..."
+                    : "processBitmap, expired in http cache, revalidating...");
+        }
+        final DiskLruCache.Editor editor =
+                snapshot != null ? snapshot.edit() : httpDiskCache.edit(key);
+        if (editor == null) {
+            return snapshot;
+        }
+        if (downloadUrlToEditor(urlString, editor, cached)) {
+            editor.commit();
+        } else {
+            editor.abort();
+            // Serve the expired copy, if any, rather than nothing.
+            return snapshot;
+        }
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        return httpDiskCache.get(key);
+    }
+
+    /**
+     * Download a URL into memory and decode it, for when there is no HTTP cache to download it
+     * into.
+     *
+     * @param urlString The URL to fetch
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @return The downloaded and resized bitmap, or null if it couldn't be downloaded
+     */
+    private Bitmap downloadBitmap(String urlString, int reqWidth, int reqHeight) {
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "processBitmap, " + (mHttpDiskCacheStarting ? "http cache not ready yet"
+                    : "no http cache") + ", downloading...");
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!downloadUrlToStream(urlString, out)) {
+            return null;
+        }
+        return decodeSampledBitmapFromByteArray(out.toByteArray(), reqWidth, reqHeight,
+                getImageCache());
+    }
+
+    /**
+     * Doesn't wait for the HTTP cache to initialize.
+     *
+     * @return The HTTP cache, or null if there is none or it is still being opened
+     */
+    private DiskLruCache getHttpDiskCache() {
+        synchronized (mHttpDiskCacheLock) {
+            return mHttpDiskCache;
+        }
+    }
+
+    /**
+     * @param key An HTTP cache key
+     * @return The lock to hold while downloading into that key. Requests for the same URL share
+     *         a lock, so only the first downloads and the others then find it in the cache.
+     */
+    private Object getDownloadLock(String key) {
+        return mDownloadLocks[(key.hashCode() & Integer.MAX_VALUE) % mDownloadLocks.length];
+    }
+
     @Override
-    protected Bitmap processBitmap(Object data) {
-        return processBitmap(String.valueOf(data));
+    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight) {
+        return processBitmap(String.valueOf(data), reqWidth, reqHeight);
     }
 
     /**
@@ -266,19 +425,18 @@ public class ImageFetcher extends ImageResizer {
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
         disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        OutputStream out = null;
+        InputStream in = null;
 
         try {
+            final long start = SystemClock.elapsedRealtime();
             final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
+            urlConnection = openConnection(url);
+            in = urlConnection.getInputStream();
+            out = outputStream;
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
+            final long bytes = copyStream(in, out);
+            logDownload(urlString, bytes, SystemClock.elapsedRealtime() - start);
             return true;
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
@@ -298,6 +456,119 @@ public class ImageFetcher extends ImageResizer {
         return false;
     }
 
+    /**
+     * Download a URL into an HTTP cache entry: the body and its {@link HttpMetadata}. If the
+     * entry already has a body, the request is made conditional on it having changed.
+     *
+     * @param urlString The URL to fetch
+     * @param editor Editor of the entry
+     * @param cached Metadata of the existing body, or null if there is none
+     * @return true if the entry is ready to commit, false otherwise
+     */
+    private boolean downloadUrlToEditor(String urlString, DiskLruCache.Editor editor,
+            HttpMetadata cached) {
+        disableConnectionReuseIfNecessary();
+        HttpURLConnection urlConnection = null;
+        InputStream in = null;
+        OutputStream out = null;
+
+        try {
+            final long start = SystemClock.elapsedRealtime();
+            final URL url = new URL(urlString);
+            urlConnection = openConnection(url);
+            if (cached != null) {
+                cached.addValidators(urlConnection);
+            }
+
+            final int status = urlConnection.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                // Keep the body; only renew the metadata.
+                editor.set(METADATA_INDEX,
+                        HttpMetadata.fromResponse(urlConnection, cached).toString());
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "downloadUrlToEditor - not modified: " + urlString);
+                }
+                return true;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                Log.e(TAG, "downloadUrlToEditor - HTTP " + status + ": " + urlString);
+                return false;
+            }
+
+            in = urlConnection.getInputStream();
+            out = editor.newOutputStream(DISK_CACHE_INDEX);
+            final long bytes = copyStream(in, out);
+            logDownload(urlString, bytes, SystemClock.elapsedRealtime() - start);
+            editor.set(METADATA_INDEX, HttpMetadata.fromResponse(urlConnection, null).toString());
+            return true;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in downloadUrlToEditor - " + e);
+        } finally {
+            if (urlConnection != null) {
+                urlConnection.disconnect();
+            }
+            try {
+                if (out != null) {
+                    out.close();
+                }
+                if (in != null) {
+                    in.close();
+                }
+            } catch (final IOException e) {}
+        }
+        return false;
+    }
+
+    /**
+     * Copy a stream in chunks; the buffer batches reads and writes as buffered streams would.
+     *
+     * @return The number of bytes copied
+     */
+    private static long copyStream(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[IO_BUFFER_SIZE];
+        long bytes = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+            bytes += count;
+        }
+        return bytes;
+    }
+
+    /**
+     * Log the size, duration and throughput of a download, and add them to the totals.
+     *
+     * @param urlString The URL fetched
+     * @param bytes Bytes downloaded
+     * @param millis Time taken, including connecting
+     */
+    private static void logDownload(String urlString, long bytes, long millis) {
+        final long totalBytes = sDownloadedBytes.addAndGet(bytes);
+        final long totalMillis = sDownloadMillis.addAndGet(millis);
+        final int count = sDownloadCount.incrementAndGet();
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, "downloadUrlToStream - " + bytes + " bytes in " + millis + "ms ("
+                    + bytesPerSecond(bytes, millis) / 1024 + " KB/s): " + urlString);
+            Log.d(TAG, "downloadUrlToStream - " + count + " downloads, " + totalBytes
+                    + " bytes in " + totalMillis + "ms ("
+                    + bytesPerSecond(totalBytes, totalMillis) / 1024 + " KB/s) so far");
+        }
+    }
+
+    /**
+     * Open a connection that gives up on slow networks rather than hang a loader thread.
+     */
+    private static HttpURLConnection openConnection(URL url) throws IOException {
+        final HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setConnectTimeout(HTTP_CONNECT_TIMEOUT);
+        urlConnection.setReadTimeout(HTTP_READ_TIMEOUT);
+        return urlConnection;
+    }
+
+    private static long bytesPerSecond(long bytes, long millis) {
+        return millis > 0 ? bytes * 1000 / millis : bytes * 1000;
+    }
+
     /**
      * Workaround for bug pre-Froyo, see here for more info:
      * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
@@ -308,4 +579,105 @@ public class ImageFetcher extends ImageResizer {
             System.setProperty("http.keepAlive", "false");
         }
     }
+
+    /**
+     * What is kept about a download besides its body: its validators and when it expires.
+     */
+    private static class HttpMetadata {
+        String etag;
+        String lastModified;
+        long expires;
+
+        /**
+         * Read the metadata of an HTTP cache entry. Unreadable metadata reads as expired and
+         * without validators, so the entry is downloaded again.
+         *
+         * @param snapshot The entry; its metadata stream is consumed
+         */
+        static HttpMetadata read(DiskLruCache.Snapshot snapshot) {
+            final HttpMetadata metadata = new HttpMetadata();
+            try {
+                final String[] lines = snapshot.getString(METADATA_INDEX).split("\n", -1);
+                if (lines.length >= 3) {
+                    metadata.etag = lines[0].length() > 0 ? lines[0] : null;
+                    metadata.lastModified = lines[1].length() > 0 ? lines[1] : null;
+                    metadata.expires = Long.parseLong(lines[2]);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "HttpMetadata.read - " + e);
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "HttpMetadata.read - " + e);
+            }
+            return metadata;
+        }
+
+        /**
+         * @param urlConnection A connection with a 200 or 304 response
+         * @param cached Metadata of the cached body a 304 response refers to, or null
+         */
+        static HttpMetadata fromResponse(HttpURLConnection urlConnection, HttpMetadata cached) {
+            final HttpMetadata metadata = new HttpMetadata();
+            metadata.etag = urlConnection.getHeaderField("ETag");
+            metadata.lastModified = urlConnection.getHeaderField("Last-Modified");
+            if (cached != null) {
+                // A 304 response need not repeat the validators.
+                if (metadata.etag == null) {
+                    metadata.etag = cached.etag;
+                }
+                if (metadata.lastModified == null) {
+                    metadata.lastModified = cached.lastModified;
+                }
+            }
+            metadata.expires = System.currentTimeMillis()
+                    + getTimeToLive(urlConnection.getHeaderField("Cache-Control"));
+            return metadata;
+        }
+
+        /**
+         * @param cacheControl The Cache-Control response header, or null
+         * @return How long the response may be used without revalidating, in milliseconds
+         */
+        private static long getTimeToLive(String cacheControl) {
+            if (cacheControl == null) {
+                return HTTP_CACHE_DEFAULT_TTL;
+            }
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim().toLowerCase(Locale.US);
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return Math.max(0, Long.parseLong(directive.substring(8))) * 1000;
+                    } catch (NumberFormatException e) {
+                        return HTTP_CACHE_DEFAULT_TTL;
+                    }
+                }
+            }
+            return HTTP_CACHE_DEFAULT_TTL;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+
+        /**
+         * Make a request conditional on the body having changed since it was cached.
+         */
+        void addValidators(HttpURLConnection urlConnection) {
+            if (etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                urlConnection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (etag != null ? etag : "") + "\n"
+                    + (lastModified != null ? lastModified : "") + "\n"
+                    + expires;
+        }
+    }
 }
@@ -0,0 +1,227 @@
+package com.weimed.app.utils;
+
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.weimed.app.newsblaze.ApplicationClass;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads images for {@link URLImageParser}s through the shared
+ * {@link com.weimed.app.utils.ImageFetcher}, on a fixed number of background threads.
+ *
+ * <p>Requests wait in a pending set instead of an executor queue. Whenever a thread is free it
+ * takes the request its clients rate closest to what the user is looking at, at that moment, so
+ * scrolling re-prioritizes the images not started yet. Concurrent requests for the same URL and
+ * size share one load. A client's requests can be cancelled at once; pending loads nobody else
+ * wants are dropped, and results of running ones are no longer delivered to it.
+ *
+ * This class is thread safe.
+ */
+class ImageLoadScheduler {
+    /**
+     * Requests images and receives them.
+     */
+    interface Client {
+        /**
+         * Called on background threads.
+         * @param position position of an image in the client's text
+         * @return how far the image is from what the user is looking at; nearer images load first
+         */
+        int getDistance(int position);
+
+        /**
+         * Called on the UI thread.
+         * @param position position passed to {@link #load(Client, String, int, int, int)}
+         * @param image the image, or null if it couldn't be loaded
+         */
+        void onImageLoaded(int position, Drawable image);
+    }
+
+    private final Object mLock = new Object();
+    // Guarded by mLock. Iteration order breaks ties between equally near requests.
+    private final LinkedHashMap<String, Request> mPending = new LinkedHashMap<String, Request>();
+    private final HashMap<String, Request> mRunning = new HashMap<String, Request>();
+
+    private final ExecutorService mExecutor;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mLoadNext = new Runnable() {
+        @Override
+        public void run() {
+            final Request request;
+            synchronized (mLock) {
+                request = takeNearest();
+                if (request == null) {
+                    // Cancelled or merged into another request meanwhile.
+                    return;
+                }
+                mRunning.put(request.key, request);
+            }
+
+            final ImageFetcher fetcher = ApplicationClass.getImageFetcher();
+            final Drawable image = fetcher != null
+                    ? fetcher.loadImageSync(request.url, request.width, request.height) : null;
+
+            final ArrayList<Ticket> tickets;
+            synchronized (mLock) {
+                mRunning.remove(request.key);
+                tickets = new ArrayList<Ticket>(request.tickets);
+            }
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Ticket ticket : tickets) {
+                        // Cancellation also happens on this thread, so this can't race.
+                        if (!ticket.cancelled) {
+                            ticket.client.onImageLoaded(ticket.position, image);
+                        }
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * @param threads maximum number of images loaded at the same time
+     */
+    ImageLoadScheduler(int threads) {
+        mExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "ImageLoad #" + mCount.getAndIncrement());
+            }
+        });
+    }
+
+    /**
+     * Request an image. May be called on any thread.
+     * @param client receives the image
+     * @param url URL of the image
+     * @param width width to decode the image for
+     * @param height height to decode the image for
+     * @param position position of the image in the client's text, passed back to the client
+     */
+    void load(Client client, String url, int width, int height, int position) {
+        final String key = url + "@" + width + "x" + height;
+        synchronized (mLock) {
+            Request request = mRunning.get(key);
+            if (request == null) {
+                request = mPending.get(key);
+            }
+            if (request == null) {
+                request = new Request(key, url, width, height);
+                mPending.put(key, request);
+                mExecutor.execute(mLoadNext);
+            }
+            request.tickets.add(new Ticket(client, position));
+        }
+    }
+
+    /**
+     * Cancel all requests of a client. Must be called on the UI thread.
+     * @param client
+     */
+    void cancel(Client client) {
+        synchronized (mLock) {
+            cancelTickets(mRunning.values().iterator(), client, false);
+            cancelTickets(mPending.values().iterator(), client, true);
+        }
+    }
+
+    private static void cancelTickets(Iterator<Request> requests, Client client,
+            boolean dropUnwanted) {
+        while (requests.hasNext()) {
+            final Request request = requests.next();
+            final Iterator<Ticket> tickets = request.tickets.iterator();
+            while (tickets.hasNext()) {
+                final Ticket ticket = tickets.next();
+                if (ticket.client == client) {
+                    ticket.cancelled = true;
+                    tickets.remove();
+                }
+            }
+            if (dropUnwanted && request.tickets.isEmpty()) {
+                requests.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove and return the pending request nearest to what its clients show. Call with mLock
+     * held.
+     */
+    private Request takeNearest() {
+        Request nearest = null;
+        int nearestDistance = Integer.MAX_VALUE;
+        for (Request request : mPending.values()) {
+            for (Ticket ticket : request.tickets) {
+                final int distance = ticket.client.getDistance(ticket.position);
+                if (distance < nearestDistance) {
+                    nearest = request;
+                    nearestDistance = distance;
+                }
+            }
+        }
+        if (nearest == null && !mPending.isEmpty()) {
+            // Only possible with distances of Integer.MAX_VALUE; still make progress.
+            nearest = mPending.values().iterator().next();
+        }
+        if (nearest != null) {
+            mPending.remove(nearest.key);
+        }
+        return nearest;
+    }
+
+    /**
+     * A URL at a size, with everyone waiting for it.
+     */
+    private static class Request {
+        final String key;
+        final String url;
+        final int width;
+        final int height;
+        // Guarded by mLock.
+        final ArrayList<Ticket> tickets = new ArrayList<Ticket>(1);
+
+        Request(String key, String url, int width, int height) {
+            this.key = key;
+            this.url = url;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /**
+     * One client's interest in a request.
+     */
+    private static class Ticket {
+        final Client client;
+        final int position;
+        // Only written with mLock held on the UI thread; only read on the UI thread.
+        boolean cancelled;
+
+        Ticket(Client client, int position) {
+            this.client = client;
+            this.position = position;
+        }
+    }
+}
@@ -86,19 +86,40 @@ public class ImageResizer extends ImageWorker {
      * sampling down the bitmap and returning it from a resource.
      *
      * @param resId
+     * @param reqWidth
+     * @param reqHeight
      * @return
      */
-    private Bitmap processBitmap(int resId) {
+    private Bitmap processBitmap(int resId, int reqWidth, int reqHeight) {
         if (BuildConfig.DEBUG) {
             Log.d(TAG, "processBitmap - " + resId);
         }
-        return decodeSampledBitmapFromResource(mResources, resId, mImageWidth,
-                mImageHeight, getImageCache());
+        return decodeSampledBitmapFromResource(mResources, resId, reqWidth,
+                reqHeight, getImageCache());
     }
 
     @Override
     protected Bitmap processBitmap(Object data) {
-        return processBitmap(Integer.parseInt(String.valueOf(data)));
+        return processBitmap(data, mImageWidth, mImageHeight);
+    }
+
+    @Override
+    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight) {
+        return processBitmap(Integer.parseInt(String.valueOf(data)), reqWidth, reqHeight);
+    }
+
+    /**
+     * The same image is sampled differently for different target sizes, so the size is part of
+     * the key.
+     */
+    @Override
+    protected String getCacheKey(Object data) {
+        return getCacheKey(data, mImageWidth, mImageHeight);
+    }
+
+    @Override
+    protected String getCacheKey(Object data, int reqWidth, int reqHeight) {
+        return data + "@" + reqWidth + "x" + reqHeight;
     }
 
     /**
@@ -195,7 +216,58 @@ public class ImageResizer extends ImageWorker {
             addInBitmapOptions(options, cache);
         }
 
-        return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        try {
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all (e.g. the image has a different config);
+            // decode into a new one instead.
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            options.inBitmap = null;
+            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+        }
+    }
+
+    /**
+     * Decode and sample down a bitmap from a byte array to the requested width and height.
+     *
+     * @param data The encoded image
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromByteArray(
+            byte[] data, int reqWidth, int reqHeight, ImageCache cache) {
+
+        // First decode with inJustDecodeBounds=true to check dimensions
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+
+        // If we're running on Honeycomb or newer, try to use inBitmap
+        if (Utils.hasHoneycomb()) {
+            addInBitmapOptions(options, cache);
+        }
+
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap didn't fit after all; decode into a new one instead.
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -207,7 +279,7 @@ public class ImageResizer extends ImageWorker {
 
         if (cache != null) {
             // Try and find a bitmap to use for inBitmap
-            Bitmap inBitmap = cache.getBitmapFromReusableSet(options);
+            Bitmap inBitmap = cache.getBitmapFromPool(options);
 
             if (inBitmap != null) {
                 options.inBitmap = inBitmap;
@@ -80,7 +80,7 @@ public abstract class ImageWorker {
         BitmapDrawable value = null;
 
         if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            value = mImageCache.getBitmapFromMemCache(getCacheKey(data));
         }
 
         if (value != null) {
@@ -101,6 +101,59 @@ public abstract class ImageWorker {
         }
     }
 
+    /**
+     * Load an image specified by the data parameter synchronously, going through the same memory
+     * cache, disk cache and {@link com.weimed.app.utils.ImageWorker#processBitmap(Object)} as
+     * {@link com.weimed.app.utils.ImageWorker#loadImage(Object, android.widget.ImageView)}. This
+     * includes disk and network access so it should not be executed on the main/UI thread.
+     * The image may be kept for as long as needed; its bitmap is never reused for decoding.
+     *
+     * @param data The URL of the image to download.
+     * @param reqWidth The width to process the image for, e.g. of the view it is shown in
+     * @param reqHeight The height to process the image for
+     * @return The processed image, or null if it could not be loaded.
+     */
+    public BitmapDrawable loadImageSync(Object data, int reqWidth, int reqHeight) {
+        if (data == null) {
+            return null;
+        }
+
+        final String dataString = getCacheKey(data, reqWidth, reqHeight);
+        BitmapDrawable drawable = null;
+        Bitmap bitmap = null;
+
+        if (mImageCache != null) {
+            drawable = mImageCache.getBitmapFromMemCache(dataString);
+            if (drawable != null) {
+                // The caller keeps the image without telling when it is done with it
+                mImageCache.setRetained(drawable);
+                return drawable;
+            }
+            bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+        }
+
+        if (bitmap == null) {
+            bitmap = processBitmap(data, reqWidth, reqHeight);
+        }
+
+        if (bitmap != null) {
+            if (Utils.hasHoneycomb()) {
+                // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
+                drawable = new BitmapDrawable(mResources, bitmap);
+            } else {
+                // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
+                // which will recycle automagically
+                drawable = new RecyclingBitmapDrawable(mResources, bitmap);
+            }
+
+            if (mImageCache != null) {
+                mImageCache.setRetained(drawable);
+                mImageCache.addBitmapToCache(dataString, drawable);
+            }
+        }
+        return drawable;
+    }
+
     /**
      * Set placeholder bitmap that shows when the the background thread is running.
      *
@@ -145,6 +198,17 @@ public abstract class ImageWorker {
         new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
     }
 
+    /**
+     * Adds an {@link ImageCache} to this {@link com.weimed.app.utils.ImageWorker} to handle disk and memory bitmap
+     * caching, without retaining it in a fragment. Use this for a worker owned by the application.
+     * @param cacheParams The cache parameters to use for the image cache.
+     */
+    public void addImageCache(ImageCache.ImageCacheParams cacheParams) {
+        mImageCacheParams = cacheParams;
+        mImageCache = ImageCache.getInstance(mImageCacheParams);
+        new CacheAsyncTask().execute(MESSAGE_INIT_DISK_CACHE);
+    }
+
     /**
      * If set to true, the image will fade-in once it has been loaded by the background thread.
      */
@@ -168,10 +232,46 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Like {@link #processBitmap(Object)}, for a requested size rather than the worker's own.
+     * Subclasses that resize should override this; by default the size is ignored.
+     *
+     * @param data The data to identify which image to process
+     * @param reqWidth The requested width
+     * @param reqHeight The requested height
+     * @return The processed bitmap
+     */
+    protected Bitmap processBitmap(Object data, int reqWidth, int reqHeight) {
+        return processBitmap(data);
+    }
+
+    /**
+     * Subclasses that process the same data into different bitmaps, e.g. at different sizes,
+     * should override this so that each of them is cached under its own key.
+     *
+     * @param data The data to identify which image to process
+     * @return The key the processed bitmap is cached under, in memory and on disk
+     */
+    protected String getCacheKey(Object data) {
+        return String.valueOf(data);
+    }
+
+    /**
+     * The key for data processed by {@link #processBitmap(Object, int, int)}.
+     *
+     * @param data The data to identify which image to process
+     * @param reqWidth The requested width
+     * @param reqHeight The requested height
+     * @return The key the processed bitmap is cached under, in memory and on disk
+     */
+    protected String getCacheKey(Object data, int reqWidth, int reqHeight) {
+        return getCacheKey(data);
+    }
+
     /**
      * @return The {@link ImageCache} object currently being used by this ImageWorker.
      */
-    protected ImageCache getImageCache() {
+    public ImageCache getImageCache() {
         return mImageCache;
     }
 
@@ -254,7 +354,7 @@ public abstract class ImageWorker {
                 Log.d(TAG, "doInBackground - starting work");
             }
 
-            final String dataString = String.valueOf(mData);
+            final String dataString = getCacheKey(mData);
             Bitmap bitmap = null;
             BitmapDrawable drawable = null;
 
@@ -17,6 +17,9 @@
 package com.weimed.app.utils;
 
 import android.text.format.Time;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
 import android.util.Xml;
 
 import org.json.JSONArray;
@@ -26,13 +29,17 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
 
 /**
  * This class parses JSON items.
@@ -42,6 +49,67 @@ import java.util.List;
  *
  */
 public class JSONParser {
+    private static final String TAG = "JSONParser";
+
+    /**
+     * ISO 8601 layouts accepted by {@link #parseTimestamp(String)}, most specific first.
+     */
+    private static final String[] TIMESTAMP_FORMATS = new String[] {
+            "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'",
+            "yyyy-MM-dd'T'HH:mm:ss'Z'",
+            "yyyy-MM-dd'T'HH:mm:ss.SSSZ",
+            "yyyy-MM-dd'T'HH:mm:ssZ",
+            "yyyy-MM-dd HH:mm:ss",
+            "yyyy-MM-dd"
+    };
+
+    /**
+     * Parsers for {@link #TIMESTAMP_FORMATS}, per thread as SimpleDateFormat isn't thread safe.
+     * Creating them is costly compared to parsing, and the sync parses two timestamps per entry.
+     */
+    private static final ThreadLocal<SimpleDateFormat[]> sTimestampParsers =
+            new ThreadLocal<SimpleDateFormat[]>() {
+        @Override
+        protected SimpleDateFormat[] initialValue() {
+            final TimeZone utc = TimeZone.getTimeZone("UTC");
+            final SimpleDateFormat[] parsers = new SimpleDateFormat[TIMESTAMP_FORMATS.length];
+            for (int i = 0; i < parsers.length; i++) {
+                parsers[i] = new SimpleDateFormat(TIMESTAMP_FORMATS[i], Locale.US);
+                parsers[i].setTimeZone(utc);
+                parsers[i].setLenient(false);
+            }
+            return parsers;
+        }
+    };
+
+    /** Parse a feed timestamp into epoch milliseconds.
+     *
+     * <p>Accepts ISO 8601 dates (UTC unless an offset is given) or a plain number of
+     * milliseconds.
+     *
+     * @param value Timestamp as sent by the server, may be null.
+     * @return Epoch milliseconds, or null if the value is null or unparseable. Unparseable
+     *         values are logged, as rows without a date sort to the end of the feed.
+     */
+    public static Long parseTimestamp(String value) {
+        if (value == null || value.length() == 0) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // Not a number, try the date layouts.
+        }
+        for (SimpleDateFormat parser : sTimestampParsers.get()) {
+            try {
+                return parser.parse(value).getTime();
+            } catch (ParseException e) {
+                // Try the next layout.
+            }
+        }
+        Log.w(TAG, "Unparseable timestamp: " + value);
+        return null;
+    }
 
     /** Parse an http response, returning a collection of Entry objects.
      *
@@ -86,4 +154,167 @@ public class JSONParser {
             in.close();
         }
     }
+
+    /** Open a streaming reader over the items of a named array in a JSON object response.
+     *
+     * <p>Unlike {@link #parseJSONObject(InputStream)}, the response is never held in memory as a
+     * whole: items are pulled from the stream one at a time, so peak memory is bounded by the
+     * largest single item rather than by the size of the feed.
+     *
+     * @param in A feed, as a stream. Closed when the returned reader is closed.
+     * @param arrayName Name of the top-level array to iterate, e.g. "articles".
+     * @return An ItemReader positioned before the first item.
+     * @throws java.io.IOException on I/O error.
+     */
+    public ItemReader openItemReader(InputStream in, String arrayName) throws IOException {
+        ItemReader reader = new ItemReader(in);
+        reader.begin(arrayName);
+        return reader;
+    }
+
+    /**
+     * Pull parser over a single array inside a JSON object response. Each call to
+     * {@link #next()} materializes exactly one item as a {@link JSONObject}.
+     */
+    public static class ItemReader implements Closeable {
+        private final JsonReader mReader;
+        private final HashMap<String, String> mFields = new HashMap<String, String>();
+        private boolean mInArray = false;
+        private int mCount = 0;
+
+        ItemReader(InputStream in) throws IOException {
+            mReader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        }
+
+        /**
+         * Read top-level fields until the named array is found, and step into it. If the
+         * array is missing, the reader simply reports no items.
+         */
+        void begin(String arrayName) throws IOException {
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                if (arrayName.equals(name) && mReader.peek() == JsonToken.BEGIN_ARRAY) {
+                    mReader.beginArray();
+                    mInArray = true;
+                    return;
+                }
+                readField(name);
+            }
+        }
+
+        /**
+         * @return true if another item is available in the array.
+         */
+        public boolean hasNext() throws IOException {
+            if (!mInArray) {
+                return false;
+            }
+            if (mReader.hasNext()) {
+                return true;
+            }
+            // End of the array: pick up any top-level fields that follow it.
+            mReader.endArray();
+            mInArray = false;
+            while (mReader.hasNext()) {
+                readField(mReader.nextName());
+            }
+            return false;
+        }
+
+        /**
+         * Look up a scalar top-level field of the response, such as a paging cursor. Fields that
+         * follow the array are only available once {@link #hasNext()} has returned false.
+         *
+         * @param name Field name.
+         * @return The field value as a String, or null if absent or not a scalar.
+         */
+        public String getField(String name) {
+            return mFields.get(name);
+        }
+
+        /**
+         * Read the next item from the stream.
+         *
+         * @return The item, as a JSONObject.
+         * @throws org.json.JSONException if the item is not a JSON object.
+         * @throws java.io.IOException on I/O error.
+         */
+        public JSONObject next() throws IOException, JSONException {
+            if (mReader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new JSONException("Expected object but was " + mReader.peek());
+            }
+            mCount++;
+            return readObject();
+        }
+
+        /**
+         * @return Number of items read so far.
+         */
+        public int getCount() {
+            return mCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+
+        private void readField(String name) throws IOException {
+            switch (mReader.peek()) {
+                case BEGIN_OBJECT:
+                case BEGIN_ARRAY:
+                    mReader.skipValue();
+                    break;
+                case NULL:
+                    mReader.nextNull();
+                    break;
+                case BOOLEAN:
+                    mFields.put(name, String.valueOf(mReader.nextBoolean()));
+                    break;
+                default:
+                    mFields.put(name, mReader.nextString());
+                    break;
+            }
+        }
+
+        private JSONObject readObject() throws IOException, JSONException {
+            JSONObject object = new JSONObject();
+            mReader.beginObject();
+            while (mReader.hasNext()) {
+                String name = mReader.nextName();
+                object.put(name, readValue());
+            }
+            mReader.endObject();
+            return object;
+        }
+
+        private JSONArray readArray() throws IOException, JSONException {
+            JSONArray array = new JSONArray();
+            mReader.beginArray();
+            while (mReader.hasNext()) {
+                array.put(readValue());
+            }
+            mReader.endArray();
+            return array;
+        }
+
+        private Object readValue() throws IOException, JSONException {
+            switch (mReader.peek()) {
+                case BEGIN_OBJECT:
+                    return readObject();
+                case BEGIN_ARRAY:
+                    return readArray();
+                case BOOLEAN:
+                    return mReader.nextBoolean();
+                case NULL:
+                    mReader.nextNull();
+                    return JSONObject.NULL;
+                default:
+                    // Strings and numbers. Numbers are kept in their textual form; JSONObject
+                    // coerces them on getLong()/getInt().
+                    return mReader.nextString();
+            }
+        }
+    }
 }
@@ -0,0 +1,409 @@
+package com.weimed.app.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A memory cache like {@link android.support.v4.util.LruCache}, split into independently locked
+ * segments so that threads using different keys rarely wait for each other, e.g. a cache hit on
+ * the UI thread while a worker thread adds a bitmap.
+ *
+ * Each segment keeps its entries in access order; the cache as a whole is bounded by one size.
+ * When it is full, entries are evicted from the segment being added to first, so the eviction
+ * order is only approximately least recently used. The entry being added is never evicted to make
+ * room for itself.
+ *
+ * A full cache also filters what it admits: each segment counts accesses to its keys in a small
+ * frequency sketch (as in TinyLFU), and a new entry is only added if its key was asked for at
+ * least as often as the entry it would displace. Popular entries therefore survive a scan through
+ * many once-seen keys, e.g. flinging through a long list.
+ *
+ * This class is thread safe.
+ */
+public class StripedLruCache<K, V> {
+    private static final int DEFAULT_SEGMENTS = 4;
+
+    private final Segment<K, V>[] mSegments;
+    private final int mSegmentMask;
+
+    private final AtomicInteger mSize = new AtomicInteger();
+    private volatile int mMaxSize;
+
+    // Segment to start evicting from when trimming the whole cache.
+    private final AtomicInteger mTrimCursor = new AtomicInteger();
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private final AtomicInteger mEvictionCount = new AtomicInteger();
+    private final AtomicInteger mRejectionCount = new AtomicInteger();
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is the maximum number
+     *     of entries in the cache. For all other caches, this is the maximum sum of the sizes of
+     *     the entries in this cache.
+     */
+    public StripedLruCache(int maxSize) {
+        this(maxSize, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxSize see {@link #StripedLruCache(int)}
+     * @param segments number of independently locked segments; rounded up to a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public StripedLruCache(int maxSize, int segments) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        int count = 1;
+        while (count < segments) {
+            count <<= 1;
+        }
+        mSegments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            mSegments[i] = new Segment<K, V>();
+        }
+        mSegmentMask = count - 1;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache. If a value was returned, it is
+     * moved to the head of its segment's queue. Either way, the access is counted towards the
+     * key's admission.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final int hash = spread(key.hashCode());
+        final Segment<K, V> segment = segmentFor(hash);
+        final V value;
+        synchronized (segment) {
+            segment.sketch.increment(hash);
+            value = segment.map.get(key);
+        }
+        if (value != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, unless the cache is full and the key is used less
+     * often than the entry it would displace, or the value is larger than the whole cache. The
+     * value is moved to the head of its segment's queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final int hash = spread(key.hashCode());
+        final int index = hash & mSegmentMask;
+        final Segment<K, V> segment = mSegments[index];
+        final int size = safeSizeOf(key, value);
+        V previous = null;
+        boolean admitted = true;
+
+        synchronized (segment) {
+            if (size > mMaxSize) {
+                // Would only fit by evicting everything else, itself included.
+                admitted = false;
+            } else if (mSize.get() + size > mMaxSize && !segment.map.containsKey(key)
+                    && !segment.map.isEmpty()) {
+                final K victim = segment.map.keySet().iterator().next();
+                admitted = segment.sketch.frequency(hash)
+                        >= segment.sketch.frequency(spread(victim.hashCode()));
+            }
+            if (admitted) {
+                previous = segment.map.put(key, value);
+                mSize.addAndGet(size);
+                if (previous != null) {
+                    mSize.addAndGet(-safeSizeOf(key, previous));
+                }
+            }
+        }
+
+        if (!admitted) {
+            mRejectionCount.incrementAndGet();
+            entryRejected(key, value);
+            return null;
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        trimToSize(mMaxSize, index, key);
+        return previous;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Segment<K, V> segment = segmentFor(spread(key.hashCode()));
+        final V previous;
+        synchronized (segment) {
+            previous = segment.map.remove(key);
+            if (previous != null) {
+                mSize.addAndGet(-safeSizeOf(key, previous));
+            }
+        }
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+        return previous;
+    }
+
+    /**
+     * Sets the maximum size of the cache, evicting the eldest entries if it is now over it.
+     *
+     * @param maxSize see {@link #StripedLruCache(int)}
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Remove the eldest entries until the total of remaining entries is at or below the
+     * requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1 to evict even
+     *     0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        trimToSize(maxSize, mTrimCursor.getAndIncrement() & mSegmentMask, null);
+    }
+
+    /**
+     * Evict entries, starting with the eldest of one segment and moving on to the next segment
+     * when it is empty.
+     *
+     * @param keep key not to evict, e.g. the one just put, which the caller is about to use; or
+     *     null
+     */
+    private void trimToSize(int maxSize, int firstSegment, K keep) {
+        int empty = 0;
+        int index = firstSegment;
+        while (mSize.get() > maxSize && empty <= mSegmentMask) {
+            final Segment<K, V> segment = mSegments[index];
+            K key = null;
+            V value = null;
+            synchronized (segment) {
+                final Iterator<Map.Entry<K, V>> eldest = segment.map.entrySet().iterator();
+                while (eldest.hasNext()) {
+                    final Map.Entry<K, V> entry = eldest.next();
+                    if (entry.getKey().equals(keep)) {
+                        continue;
+                    }
+                    key = entry.getKey();
+                    value = entry.getValue();
+                    eldest.remove();
+                    mSize.addAndGet(-safeSizeOf(key, value));
+                    break;
+                }
+            }
+            if (key == null) {
+                empty++;
+                index = (index + 1) & mSegmentMask;
+                continue;
+            }
+            empty = 0;
+            mEvictionCount.incrementAndGet();
+            entryRemoved(true, key, value, null);
+        }
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is invoked when a value
+     * is evicted to make space, removed by a call to {@link #remove}, or replaced by a call to
+     * {@link #put}. The default implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may access the cache while
+     * this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false if the removal was
+     *     caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null, this removal was
+     *     caused by a {@link #put}. Otherwise it was caused by an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called for values passed to {@link #put} that were not admitted to the full cache. The
+     * caller still holds the value; it was never cached. The default implementation does
+     * nothing.
+     */
+    protected void entryRejected(K key, V value) {}
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in user-defined units.
+     * The default implementation returns 1 so that size is the number of entries and max size is
+     * the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private Segment<K, V> segmentFor(int hash) {
+        return mSegments[hash & mSegmentMask];
+    }
+
+    /**
+     * Spread the bits of a hash code, so that segments and sketch rows don't just see the low
+     * bits.
+     */
+    private static int spread(int h) {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number of entries in the
+     * cache. For all other caches, this returns the sum of the sizes of the entries in this
+     * cache.
+     */
+    public final int size() {
+        return mSize.get();
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum number of
+     * entries in the cache. For all other caches, this returns the maximum sum of the sizes of
+     * the entries in this cache.
+     */
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value.
+     */
+    public final int hitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public final int missCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * Returns the number of values that were not admitted to the full cache.
+     */
+    public final int rejectionCount() {
+        return mRejectionCount.get();
+    }
+
+    @Override
+    public final String toString() {
+        final int hits = mHitCount.get();
+        final int accesses = hits + mMissCount.get();
+        final int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return "StripedLruCache[size=" + mSize.get() + ",maxSize=" + mMaxSize
+                + ",segments=" + mSegments.length + ",hits=" + hits
+                + ",misses=" + mMissCount.get() + ",hitRate=" + hitPercent
+                + "%,evictions=" + mEvictionCount.get()
+                + ",rejections=" + mRejectionCount.get() + "]";
+    }
+
+    /**
+     * One independently locked part of the cache. Guarded by itself.
+     */
+    private static final class Segment<K, V> {
+        final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(0, 0.75f, true);
+        final FrequencySketch sketch = new FrequencySketch();
+    }
+
+    /**
+     * Approximate access counts of keys: a count-min sketch of small saturating counters, all
+     * halved periodically so that old popularity fades.
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int WIDTH = 512; // Must be a power of two
+        private static final int MAX_COUNT = 15;
+        private static final int RESET_INTERVAL = WIDTH * 10;
+        private static final int[] SEEDS = {
+                0x97cb3127, 0x9e3779b9, 0x85ebca6b, 0xc2b2ae35
+        };
+
+        private final byte[] mCounts = new byte[DEPTH * WIDTH];
+        private int mAdditions;
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                final int i = indexOf(hash, row);
+                if (mCounts[i] < MAX_COUNT) {
+                    mCounts[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++mAdditions >= RESET_INTERVAL) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, mCounts[indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+            for (int i = 0; i < mCounts.length; i++) {
+                mCounts[i] = (byte) (mCounts[i] >> 1);
+            }
+            mAdditions /= 2;
+        }
+
+        private static int indexOf(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+            h ^= h >>> 16;
+            return row * WIDTH + (h & (WIDTH - 1));
+        }
+    }
+}
@@ -13,6 +13,10 @@ public class URLDrawable extends BitmapDrawable {
     // with the loading image if you need to
     protected Drawable drawable;
 
+    // where the image comes from, and its position among the images of its URLImageParser
+    protected String source;
+    protected int position;
+
     @Override
     public void draw(Canvas canvas) {
         // override the draw to facilitate refresh function later
@@ -2,50 +2,283 @@ package com.weimed.app.utils;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Point;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
+import android.support.v4.view.ViewCompat;
 import android.text.Html;
-import android.util.Log;
+import android.text.Layout;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.style.ImageSpan;
 import android.util.LruCache;
 import android.view.View;
 import android.widget.TextView;
 
-import com.weimed.app.newsblaze.ApplicationClass;
-
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by Richard Lee (rlee) on 5/18/14.
+ *
+ * Each image starts as a placeholder sized from the dimensions declared in the HTML, or seen the
+ * last time the image was loaded, so the text around it doesn't jump when it arrives. Images that
+ * land together are applied once per frame. When an image's size differs from its placeholder,
+ * only its span is set again, which makes the TextView's (dynamic) layout re-measure just that
+ * paragraph instead of the whole article.
+ *
+ * Images load through a shared {@link ImageLoadScheduler}, nearest to the scroll position first.
+ * Call {@link #cancelLoads()} when the view goes away, which also lets go of the loaded images;
+ * setting a new container loads them again.
  */
 public class URLImageParser implements Html.ImageGetter {
+    /**
+     * Height of a placeholder for an image of unknown size, relative to its width.
+     */
+    private static final float DEFAULT_ASPECT_RATIO = 0.75f;
+
+    /**
+     * Intrinsic sizes of recently loaded images, by URL.
+     */
+    private static final LruCache<String, Point> sKnownSizes =
+            new LruCache<String, Point>(256);
+
+    /**
+     * Maximum number of article images loaded at the same time, across all parsers.
+     */
+    private static final int MAX_CONCURRENT_LOADS = 2;
+
+    private static final ImageLoadScheduler sScheduler =
+            new ImageLoadScheduler(MAX_CONCURRENT_LOADS);
+
+    private static final Pattern IMG_TAG = Pattern.compile("<img\\b[^>]*>", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SRC_ATTR =
+            Pattern.compile("\\bsrc\\s*=\\s*[\"']([^\"']*)[\"']", Pattern.CASE_INSENSITIVE);
+    private static final Pattern WIDTH_ATTR =
+            Pattern.compile("\\bwidth\\s*=\\s*[\"']?(\\d+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern HEIGHT_ATTR =
+            Pattern.compile("\\bheight\\s*=\\s*[\"']?(\\d+)", Pattern.CASE_INSENSITIVE);
+
     Context c;
-    View container;
+    WeakReference<View> container;
+
+    /**
+     * Width images may take up, measured on the UI thread. Images are decoded for it.
+     */
+    private final int mAvailableWidth;
+
+    /**
+     * Height images are decoded for: the screen's, as an image fitted to the width may be tall.
+     */
+    private final int mDecodeHeight;
+
+    /**
+     * Every image handed out by {@link #getDrawable(String)}, by position. Guarded by itself.
+     */
+    private final ArrayList<URLDrawable> mImages = new ArrayList<URLDrawable>();
+
+    /**
+     * Position of the first image on screen, or of the next one below it.
+     */
+    private volatile int mFocus = 0;
+
+    private volatile boolean mCancelled = false;
+
+    private final ImageLoadScheduler.Client mClient = new ImageLoadScheduler.Client() {
+        @Override
+        public int getDistance(int position) {
+            return Math.abs(position - mFocus);
+        }
+
+        @Override
+        public void onImageLoaded(int position, Drawable image) {
+            URLDrawable urlDrawable;
+            synchronized (mImages) {
+                urlDrawable = mImages.get(position);
+            }
+            if (image != null) {
+                setImage(urlDrawable, image);
+            }
+        }
+    };
+
+    /**
+     * Sizes declared by width/height attributes in the HTML, by URL.
+     */
+    private final ConcurrentHashMap<String, Point> mDeclaredSizes =
+            new ConcurrentHashMap<String, Point>();
+
+    // Images waiting for the next frame. UI thread only.
+    private final HashSet<Drawable> mResized = new HashSet<Drawable>();
+    private boolean mRefreshScheduled = false;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mRefreshScheduled = false;
+            View view = container.get();
+            if (view == null) {
+                // Not shown right now; picked up when the text is next set.
+                mResized.clear();
+                return;
+            }
+            if (!mResized.isEmpty()) {
+                reflowResized((TextView) view);
+                mResized.clear();
+            }
+            view.invalidate();
+        }
+    };
 
     /***
-     * Construct the URLImageParser which will execute AsyncTask and refresh the container
+     * Construct the URLImageParser which will load images in the background and refresh the
+     * container
      * @param t
      * @param c
+     * @param availableWidth width images may take up, e.g. the container's content width;
+     *                       views can't be measured from the threads images are parsed on
      */
-    public URLImageParser(View t, Context c) {
+    public URLImageParser(View t, Context c, int availableWidth) {
         this.c = c;
-        this.container = t;
+        mAvailableWidth = availableWidth;
+        mDecodeHeight = c.getResources().getDisplayMetrics().heightPixels;
+        setContainer(t);
+    }
+
+    /***
+     * Refresh another view when images arrive, e.g. when text rendered earlier is shown again in
+     * a new view. The view is only weakly referenced, so cached text doesn't keep it alive.
+     * Resumes loads stopped by {@link #cancelLoads()}. Must be called on the UI thread.
+     * @param t
+     */
+    public void setContainer(View t) {
+        this.container = new WeakReference<View>(t);
+        if (t != null && mCancelled) {
+            mCancelled = false;
+            synchronized (mImages) {
+                for (URLDrawable image : mImages) {
+                    if (image.drawable == null) {
+                        sScheduler.load(mClient, image.source, mAvailableWidth, mDecodeHeight,
+                                image.position);
+                    }
+                }
+            }
+        }
+    }
+
+    /***
+     * Stop loading images, e.g. when the view they are for is destroyed. Images already loading
+     * still finish, into the caches, but are not applied. Loaded images are dropped too, so text
+     * kept around in a cache doesn't pin bitmaps; they are loaded again, usually from the memory
+     * cache, when a container is set. Must be called on the UI thread.
+     */
+    public void cancelLoads() {
+        mCancelled = true;
+        sScheduler.cancel(mClient);
+        synchronized (mImages) {
+            for (URLDrawable image : mImages) {
+                image.drawable = null;
+            }
+        }
+        mResized.clear();
+    }
+
+    /***
+     * {@link #cancelLoads()}, unless the container is still attached to a window, e.g. when the
+     * text is dropped from a cache but may still be on screen. Must be called on the UI thread.
+     */
+    public void cancelLoadsIfDetached() {
+        View view = container.get();
+        if (view == null || view.getWindowToken() == null) {
+            cancelLoads();
+        }
     }
 
-    public Drawable getDrawable(String source) {
+    /***
+     * Load the images nearest to the scroll position of the container first. Call when it
+     * scrolls. Must be called on the UI thread.
+     */
+    public void updateFocus() {
+        View view = container.get();
+        if (!(view instanceof TextView)) {
+            return;
+        }
+        TextView textView = (TextView) view;
+        Layout layout = textView.getLayout();
+        if (layout == null || !(textView.getText() instanceof Spanned)) {
+            return;
+        }
+        Spanned text = (Spanned) textView.getText();
+        int top = layout.getLineStart(layout.getLineForVertical(textView.getScrollY()));
+        int bottom = layout.getLineEnd(
+                layout.getLineForVertical(textView.getScrollY() + textView.getHeight()));
+        ImageSpan[] spans = text.getSpans(top, bottom, ImageSpan.class);
+        if (spans.length == 0) {
+            int next = text.nextSpanTransition(bottom, text.length(), ImageSpan.class);
+            spans = text.getSpans(next, next, ImageSpan.class);
+        }
+        int focus = Integer.MAX_VALUE;
+        for (ImageSpan span : spans) {
+            if (span.getDrawable() instanceof URLDrawable) {
+                focus = Math.min(focus, ((URLDrawable) span.getDrawable()).position);
+            }
+        }
+        if (focus != Integer.MAX_VALUE) {
+            mFocus = focus;
+        }
+    }
+
+    /***
+     * Record the width and height attributes of the img tags in some HTML, for sizing
+     * placeholders. Call before passing the HTML to Html.fromHtml.
+     * @param html
+     */
+    public void declareSizes(String html) {
+        Matcher tag = IMG_TAG.matcher(html);
+        while (tag.find()) {
+            String img = tag.group();
+            Matcher src = SRC_ATTR.matcher(img);
+            Matcher width = WIDTH_ATTR.matcher(img);
+            Matcher height = HEIGHT_ATTR.matcher(img);
+            if (src.find() && width.find() && height.find()) {
+                try {
+                    mDeclaredSizes.put(src.group(1), new Point(
+                            Integer.parseInt(width.group(1)), Integer.parseInt(height.group(1))));
+                } catch (NumberFormatException e) {
+                    // Ignore absurd sizes; the placeholder falls back to the default.
+                }
+            }
+        }
+    }
+
+    /***
+     * May be called on any thread, e.g. while Html.fromHtml runs in the background.
+     * @param source
+     * @return
+     */
+    public Drawable getDrawable(final String source) {
         URLDrawable urlDrawable = new URLDrawable();
+        Point size = sKnownSizes.get(source);
+        if (size == null) {
+            size = mDeclaredSizes.get(source);
+        }
+        urlDrawable.setBounds(fitToWidth(size, mAvailableWidth));
+        urlDrawable.source = source;
 
         // get the actual source
-        ImageGetterAsyncTask asyncTask =
-                new ImageGetterAsyncTask(urlDrawable);
-
-        asyncTask.execute(source);
+        synchronized (mImages) {
+            urlDrawable.position = mImages.size();
+            mImages.add(urlDrawable);
+        }
+        if (!mCancelled) {
+            sScheduler.load(mClient, source, mAvailableWidth, mDecodeHeight,
+                    urlDrawable.position);
+        }
 
         // return reference to URLDrawable where I will change with actual image from
         // the src tag
@@ -53,72 +286,81 @@ public class URLImageParser implements Html.ImageGetter {
 
     }
 
-    public class ImageGetterAsyncTask extends AsyncTask<String, Void, Drawable> {
-        URLDrawable urlDrawable;
-
-        public ImageGetterAsyncTask(URLDrawable d) {
-            this.urlDrawable = d;
+    /***
+     * Bounds for an image of the given size, scaled down to fit the width.
+     * @param size intrinsic size, or null if unknown
+     * @param maxWidth
+     */
+    private static Rect fitToWidth(Point size, int maxWidth) {
+        if (size == null || size.x <= 0 || size.y <= 0) {
+            return new Rect(0, 0, maxWidth, (int) (maxWidth * DEFAULT_ASPECT_RATIO));
+        }
+        if (size.x <= maxWidth) {
+            return new Rect(0, 0, size.x, size.y);
         }
+        return new Rect(0, 0, maxWidth, (int) ((long) size.y * maxWidth / size.x));
+    }
 
-        @Override
-        protected Drawable doInBackground(String... params) {
-            String source = params[0];
-            return fetchDrawable(source);
+    /***
+     * Apply an arrived image on the next frame, together with any others arriving meanwhile.
+     * @param drawable
+     * @param resized true if its bounds changed from the placeholder's
+     */
+    private void scheduleRefresh(Drawable drawable, boolean resized) {
+        if (resized) {
+            mResized.add(drawable);
         }
+        if (mRefreshScheduled) {
+            return;
+        }
+        View view = container.get();
+        if (view != null) {
+            mRefreshScheduled = true;
+            ViewCompat.postOnAnimation(view, mRefresh);
+        }
+    }
 
-        @Override
-        protected void onPostExecute(Drawable result) {
-            // set the correct bound according to the result from HTTP call
-            urlDrawable.setBounds(0, 0, 0 + result.getIntrinsicWidth(), 0
-                    + result.getIntrinsicHeight());
-
-            // change the reference of the current drawable to the result
-            // from the HTTP call
-            urlDrawable.drawable = result;
-
-            // redraw the image by invalidating the container
-            URLImageParser.this.container.invalidate();
-
-            // for textview only
-            ((TextView)URLImageParser.this.container).setText(((TextView)URLImageParser.this.container).getText());
-        }
-
-        /***
-         * Get the Drawable from URL
-         * @param urlString
-         * @return
-         */
-        public Drawable fetchDrawable(String urlString) {
-            // if hitting mem cache
-            BitmapDrawable drawable = ApplicationClass.getBitmapFromCache(c, urlString);
-//            if (drawable == null) {
-//                // Check disk cache in background thread
-//                drawable = ApplicationClass.getBitmapFromDiskCache(urlString);
-//            }
-            if (drawable != null) {
-                drawable.setBounds(0, 0, 0 + drawable.getIntrinsicWidth(), 0
-                        + drawable.getIntrinsicHeight());
-                return drawable;
-            }
-            Log.d(this.getClass().getSimpleName(), "image url:" + urlString);
-            try {
-                InputStream is = fetch(urlString);
-                drawable = (BitmapDrawable) Drawable.createFromStream(is, "src");
-                ApplicationClass.addBitmapToCache(urlString, drawable);
-                //ApplicationClass.addBitmapToMemoryCache(urlString, drawable);
-                drawable.setBounds(0, 0, 0 + drawable.getIntrinsicWidth(), 0
-                        + drawable.getIntrinsicHeight());
-                return drawable;
-            } catch (Exception e) {
-                return null;
+    /***
+     * Re-measure the spans of resized images. Setting a span again on spannable text makes its
+     * dynamic layout reflow only the paragraph containing it.
+     * @param view
+     */
+    private void reflowResized(TextView view) {
+        CharSequence text = view.getText();
+        if (!(text instanceof Spannable)) {
+            // Static layout; it can only be rebuilt as a whole.
+            view.setText(text);
+            return;
+        }
+        Spannable spannable = (Spannable) text;
+        for (ImageSpan span : spannable.getSpans(0, spannable.length(), ImageSpan.class)) {
+            if (mResized.contains(span.getDrawable())) {
+                spannable.setSpan(span, spannable.getSpanStart(span), spannable.getSpanEnd(span),
+                        spannable.getSpanFlags(span));
             }
         }
+    }
 
-        private InputStream fetch(String urlString) throws MalformedURLException, IOException {
-            DefaultHttpClient httpClient = new DefaultHttpClient();
-            HttpGet request = new HttpGet(urlString);
-            HttpResponse response = httpClient.execute(request);
-            return response.getEntity().getContent();
-        }
+    /***
+     * Show a loaded image in place of its placeholder.
+     * @param urlDrawable the placeholder
+     * @param result the image
+     */
+    private void setImage(URLDrawable urlDrawable, Drawable result) {
+        Point size = new Point(result.getIntrinsicWidth(), result.getIntrinsicHeight());
+        sKnownSizes.put(urlDrawable.source, size);
+
+        // set the correct bound according to the result from HTTP call, scaled to fit
+        Rect bounds = fitToWidth(size, mAvailableWidth);
+        result.setBounds(bounds);
+        boolean resized = !bounds.equals(urlDrawable.getBounds());
+        urlDrawable.setBounds(bounds);
+
+        // change the reference of the current drawable to the result
+        // from the HTTP call
+        urlDrawable.drawable = result;
+
+        // redraw the image by invalidating the container, once per frame
+        scheduleRefresh(urlDrawable, resized);
     }
-}
\ No newline at end of file
+}
@@ -73,6 +73,10 @@ public class Utils {
         return Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN;
     }
 
+    public static boolean hasJellyBeanMR2() {
+        return Build.VERSION.SDK_INT >= VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
     public static boolean hasKitKat() {
         return Build.VERSION.SDK_INT >= VERSION_CODES.KITKAT;
     }
@@ -4,7 +4,6 @@ import android.graphics.Typeface;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.Spanned;
-import android.text.TextUtils;
 import android.text.style.LeadingMarginSpan;
 import android.text.style.QuoteSpan;
 import android.text.style.RelativeSizeSpan;
@@ -23,95 +22,114 @@ public class Bypass {
 	public CharSequence markdownToSpannable(String markdown) {
 		Document document = processMarkdown(markdown);
 
-		CharSequence[] spans = new CharSequence[document.getElementCount()];
+		// Render the whole tree into one builder, so text is copied once rather than at every
+		// level of nesting.
+		SpannableStringBuilder builder = new SpannableStringBuilder();
 		for (int i = 0; i < document.getElementCount(); i++) {
-			spans[i] = recurseElement(document.getElement(i));
+			renderElement(document.getElement(i), builder);
 		}
 
-		return TextUtils.concat(spans);
+		return builder;
 	}
 
 	private native Document processMarkdown(String markdown);
 
-	private CharSequence recurseElement(Element element) {
+	/**
+	 * Append an element and its children to the builder, then span the range they occupy.
+	 * Children are spanned before their parent, as when each level was built separately.
+	 */
+	private void renderElement(Element element, SpannableStringBuilder builder) {
+		final int start = builder.length();
+		final Element parent = element.getParent();
+		final Element.Type type = element.getType();
 
-		CharSequence[] spans = new CharSequence[element.size()];
-		for (int i = 0; i < element.size(); i++) {
-			spans[i] = recurseElement(element.children[i]);
+		if (parent != null && parent.getType() == Element.Type.LIST_ITEM
+				&& type == Element.Type.LIST) {
+			builder.append('\n');
+		}
+		if (type == Element.Type.LIST_ITEM) {
+			builder.append('\u2022');
 		}
-
-		CharSequence concat = TextUtils.concat(spans);
-
-		SpannableStringBuilder builder = new SpannableStringBuilder();
 		String text = element.getText();
 		if (element.size() == 0
-				&& element.getParent().getType() != Element.Type.BLOCK_CODE) {
-			text = text.replace('\n', ' ');
+				&& (parent == null || parent.getType() != Element.Type.BLOCK_CODE)) {
+			appendFlattened(text, builder);
+		} else if (text != null) {
+			builder.append(text);
 		}
-		if (element.getParent() != null
-				&& element.getParent().getType() == Element.Type.LIST_ITEM
-				&& element.getType() == Element.Type.LIST) {
-			builder.append("\n");
-		}
-		if (element.getType() == Element.Type.LIST_ITEM) {
-			builder.append("\u2022");
+		for (int i = 0; i < element.size(); i++) {
+			renderElement(element.children[i], builder);
 		}
-		builder.append(text);
-		builder.append(concat);
-		if (element.getType() == Element.Type.LIST && element.getParent() != null) {
+		if (type == Element.Type.LIST && parent != null) {
 
-		} else if (element.getType() == Element.Type.LIST_ITEM) {
+		} else if (type == Element.Type.LIST_ITEM) {
 			if (element.size() > 0 && element.children[element.size()-1].isBlockElement()) {
-				
+
 			}
 			else {
-				builder.append("\n");
+				builder.append('\n');
 			}
 		} else if (element.isBlockElement()) {
 			builder.append("\n\n");
 		}
 
-		if (element.getType() == Element.Type.HEADER) {
+		// Span instances can't be shared: setting one twice on a Spannable moves it.
+		final int end = builder.length();
+		if (type == Element.Type.HEADER) {
 			String levelStr = element.getAttribute("level");
 			int level = Integer.parseInt(levelStr);
-			builder.setSpan(new RelativeSizeSpan(HEADER_SIZES[level]), 0,
-					builder.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-			builder.setSpan(new StyleSpan(Typeface.BOLD), 0, builder.length(),
+			builder.setSpan(new RelativeSizeSpan(HEADER_SIZES[level]), start,
+					end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+			builder.setSpan(new StyleSpan(Typeface.BOLD), start, end,
 					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-		} else if (element.getType() == Element.Type.LIST_ITEM
-				&& element.getParent().getParent() != null) {
+		} else if (type == Element.Type.LIST_ITEM
+				&& parent.getParent() != null) {
 			LeadingMarginSpan span = new LeadingMarginSpan.Standard(20);
-			builder.setSpan(span, 0, builder.length(),
+			builder.setSpan(span, start, end,
 					Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-		} else if (element.getType() == Element.Type.EMPHASIS) {
+		} else if (type == Element.Type.EMPHASIS) {
 			StyleSpan italicSpan = new StyleSpan(Typeface.ITALIC);
-			builder.setSpan(italicSpan, 0, builder.length(),
+			builder.setSpan(italicSpan, start, end,
 					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-		} else if (element.getType() == Element.Type.DOUBLE_EMPHASIS) {
+		} else if (type == Element.Type.DOUBLE_EMPHASIS) {
 			StyleSpan boldSpan = new StyleSpan(Typeface.BOLD);
-			builder.setSpan(boldSpan, 0, builder.length(),
+			builder.setSpan(boldSpan, start, end,
 					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-		} else if (element.getType() == Element.Type.TRIPLE_EMPHASIS) {
+		} else if (type == Element.Type.TRIPLE_EMPHASIS) {
 			StyleSpan bolditalicSpan = new StyleSpan(Typeface.BOLD_ITALIC);
-			builder.setSpan(bolditalicSpan, 0, builder.length(),
+			builder.setSpan(bolditalicSpan, start, end,
 					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-		} else if (element.getType() == Element.Type.CODE_SPAN) {
+		} else if (type == Element.Type.CODE_SPAN) {
 			TypefaceSpan monoSpan = new TypefaceSpan("monospace");
-			builder.setSpan(monoSpan, 0, builder.length(),
+			builder.setSpan(monoSpan, start, end,
 					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-		} else if (element.getType() == Element.Type.LINK) {
+		} else if (type == Element.Type.LINK) {
 			URLSpan urlSpan = new URLSpan(element.getAttribute("link"));
-			builder.setSpan(urlSpan, 0, builder.length(),
+			builder.setSpan(urlSpan, start, end,
 					Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-		} else if (element.getType() == Element.Type.BLOCK_QUOTE) {
+		} else if (type == Element.Type.BLOCK_QUOTE) {
 			QuoteSpan quoteSpan = new QuoteSpan();
-			builder.setSpan(quoteSpan, 0, builder.length(),
+			builder.setSpan(quoteSpan, start, end,
 					Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
 			StyleSpan italicSpan = new StyleSpan(Typeface.ITALIC);
-			builder.setSpan(italicSpan, 0, builder.length(),
+			builder.setSpan(italicSpan, start, end,
 					Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
 		}
+	}
 
-		return builder;
+	/**
+	 * Append leaf text with line breaks turned into spaces, without copying the string.
+	 */
+	private static void appendFlattened(String text, SpannableStringBuilder builder) {
+		if (text == null) {
+			return;
+		}
+		int from = 0;
+		int newline;
+		while ((newline = text.indexOf('\n', from)) >= 0) {
+			builder.append(text, from, newline).append(' ');
+			from = newline + 1;
+		}
+		builder.append(text, from, text.length());
 	}
 }
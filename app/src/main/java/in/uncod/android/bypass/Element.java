@@ -1,8 +1,5 @@
 package in.uncod.android.bypass;
 
-import java.util.Map;
-import java.util.HashMap;
-
 public class Element {
 	
 	public enum Type {
@@ -40,19 +37,25 @@ public class Element {
 	        this.value = value;
 	    }
 	    
-	    private static final Type[] TypeValues = Type.values();
-	    public static Type fromInteger(int x) {
-	    	for (Type type : TypeValues) {
-	    		if (type.value == x) {
-	    			return type;
-	    		}
+	    // The low byte of each value is distinct, so it indexes a lookup table directly.
+	    private static final Type[] TypeValues = new Type[0x100];
+	    static {
+	    	for (Type type : values()) {
+	    		TypeValues[type.value & 0xFF] = type;
 	    	}
-	    	return null;
+	    }
+
+	    public static Type fromInteger(int x) {
+	    	Type type = TypeValues[x & 0xFF];
+	    	return type != null && type.value == x ? type : null;
 	    }
 	}
 	
 	String text;
-	Map<String, String> attributes = new HashMap<String, String>();
+	// Alternating names and values; null until the first attribute. Only a few element types
+	// (HEADER, LINK) have attributes at all, and then only one or two.
+	String[] attributes;
+	int attributeCount;
 	Element[] children;
 	Type type;
 	Element parent;
@@ -72,11 +75,30 @@ public class Element {
 	}
 
 	public void addAttribute(String name, String value) {
-		attributes.put(name, value);
+		for (int i = 0; i < attributeCount; i += 2) {
+			if (attributes[i].equals(name)) {
+				attributes[i + 1] = value;
+				return;
+			}
+		}
+		if (attributes == null) {
+			attributes = new String[2];
+		} else if (attributeCount == attributes.length) {
+			String[] grown = new String[attributeCount * 2];
+			System.arraycopy(attributes, 0, grown, 0, attributeCount);
+			attributes = grown;
+		}
+		attributes[attributeCount++] = name;
+		attributes[attributeCount++] = value;
 	}
 
 	public String getAttribute(String name) {
-		return attributes.get(name);
+		for (int i = 0; i < attributeCount; i += 2) {
+			if (attributes[i].equals(name)) {
+				return attributes[i + 1];
+			}
+		}
+		return null;
 	}
 
 	public Element getParent() {